@@ -36,3 +36,23 @@ LOCAL_STATIC_JAVA_LIBRARIES := \
 include frameworks/base/packages/SettingsLib/common.mk
 
 include $(BUILD_PACKAGE)
+
+# Host JVM benchmark for the pure theme logic, see
+# benchmark/src/com/dirtyunicorns/themes/benchmark/ThemesCoreBenchmark.java
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := DU-Themes-benchmark
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, benchmark/src) \
+    src/com/dirtyunicorns/themes/CardViewTypes.java \
+    src/com/dirtyunicorns/themes/utils/OverlayDiff.java \
+    src/com/dirtyunicorns/themes/utils/ScheduleRule.java \
+    src/com/dirtyunicorns/themes/utils/WeeklyTimeline.java
+
+LOCAL_JAR_MANIFEST := benchmark/manifest.txt
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
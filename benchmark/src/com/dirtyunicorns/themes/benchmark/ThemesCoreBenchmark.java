@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.benchmark;
+
+import com.dirtyunicorns.themes.CardViewTypes;
+import com.dirtyunicorns.themes.utils.OverlayDiff;
+import com.dirtyunicorns.themes.utils.ScheduleRule;
+import com.dirtyunicorns.themes.utils.WeeklyTimeline;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ThemesCoreBenchmark {
+
+    // Host JVM benchmark for the theme core's pure paths, reporting
+    // throughput and heap allocation per operation. Built as the
+    // DU-Themes-benchmark host jar, run with
+    //   java -jar DU-Themes-benchmark.jar [measure seconds]
+    // Overlay names are synthetic, sized like the framework's lists.
+    // Restore card decoding and the backup manifest need android.graphics
+    // and org.json, those are timed on device through ThemesMetrics.
+    private static final long WARMUP_NANOS = 1000000000L;
+    private static final int BATCH = 1024;
+
+    private static final String[] QS_TILE_STYLES = {
+            "com.android.systemui.qstile.default",
+            "com.android.systemui.qstile.circletrim",
+            "com.android.systemui.qstile.dualtonecircletrim",
+            "com.android.systemui.qstile.squircletrim",
+            "com.android.systemui.qstile.attemptmountain",
+            "com.android.systemui.qstile.cosmos",
+            "com.android.systemui.qstile.dottedcircle",
+            "com.android.systemui.qstile.ninja",
+            "com.android.systemui.qstile.pokesign",
+            "com.android.systemui.qstile.wavey"
+    };
+    private static final String[] SB_ICONS = { "1", "2", "3", "4" };
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+
+    // Keeps the JIT from dropping the measured work
+    private static volatile int sSink;
+
+    private interface Operation {
+        int run(int iteration);
+    }
+
+    public static void main(String[] args) {
+        long measureNanos = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000000000L;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.println(String.format("%-32s %14s %10s", "benchmark", "ops/s", "B/op"));
+        run(threads, measureNanos, "card view type", new Operation() {
+            @Override
+            public int run(int iteration) {
+                return CardViewTypes.get(QS_TILE_STYLES[iteration % QS_TILE_STYLES.length],
+                        SB_ICONS[iteration % SB_ICONS.length]);
+            }
+        });
+
+        final String[] accents = getOverlays("accent", 32);
+        final String[] fonts = getOverlays("font", 24);
+        final String[][] backgrounds = new String[7][];
+        for (int i = 0; i < backgrounds.length; i++) {
+            backgrounds[i] = getOverlays("background" + i, 3);
+        }
+        final OverlayDiff.EnabledOverlays state = getState(accents[5], fonts[3],
+                backgrounds[2][0], backgrounds[2][1], backgrounds[2][2]);
+
+        run(threads, measureNanos, "category diff", new Operation() {
+            @Override
+            public int run(int iteration) {
+                Map<String, Boolean> overlays = new LinkedHashMap<>();
+                OverlayDiff.addCategoryChanges(overlays, state, accents,
+                        accents[iteration % accents.length]);
+                return overlays.size();
+            }
+        });
+        run(threads, measureNanos, "theme diff", new Operation() {
+            @Override
+            public int run(int iteration) {
+                Map<String, Boolean> overlays = new LinkedHashMap<>();
+                OverlayDiff.addCategoryChanges(overlays, state, accents,
+                        accents[iteration % accents.length]);
+                OverlayDiff.addCategoryChanges(overlays, state, fonts, null);
+                OverlayDiff.addBackgroundChanges(overlays, state, backgrounds,
+                        backgrounds[iteration % backgrounds.length]);
+                return overlays.size();
+            }
+        });
+
+        // A busy schedule, a few rules per day on top of weekday/weekend ones
+        List<ScheduleRule> rules = new ArrayList<>();
+        rules.add(new ScheduleRule(ScheduleRule.WEEKDAYS, 7 * 60, "Work"));
+        rules.add(new ScheduleRule(ScheduleRule.WEEKEND, 9 * 60 + 30, "Weekend"));
+        for (int day = 0; day < 7; day++) {
+            for (int hour = 12; hour < 24; hour += 3) {
+                rules.add(new ScheduleRule(1 << day, hour * 60 + day, "Theme " + hour));
+            }
+        }
+        final WeeklyTimeline timeline = new WeeklyTimeline(rules);
+        final long now = System.currentTimeMillis();
+        run(threads, measureNanos, "schedule next trigger", new Operation() {
+            @Override
+            public int run(int iteration) {
+                // Walks through the week a few minutes at a time
+                long time = now + (iteration % 4096) * 7 * MINUTE_MILLIS;
+                return (int) timeline.getNext(time).getTime();
+            }
+        });
+    }
+
+    private static void run(com.sun.management.ThreadMXBean threads, long measureNanos,
+            String name, Operation operation) {
+        long threadId = Thread.currentThread().getId();
+        int sink = 0;
+        long end = System.nanoTime() + WARMUP_NANOS;
+        int iteration = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < BATCH; i++) {
+                sink += operation.run(iteration++);
+            }
+        }
+
+        long ops = 0;
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        end = start + measureNanos;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sink += operation.run(iteration++);
+            }
+            ops += BATCH;
+            now = System.nanoTime();
+        } while (now < end);
+        allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+        sSink = sink;
+
+        System.out.println(String.format("%-32s %14.0f %10.1f", name,
+                ops * 1e9 / (now - start), (double) allocated / ops));
+    }
+
+    private static String[] getOverlays(String category, int count) {
+        String[] overlays = new String[count];
+        for (int i = 0; i < count; i++) {
+            overlays[i] = "com.android.theme." + category + "." + i;
+        }
+        return overlays;
+    }
+
+    private static OverlayDiff.EnabledOverlays getState(String... enabled) {
+        final Set<String> overlays = new HashSet<>();
+        for (String overlay : enabled) {
+            overlays.add(overlay);
+        }
+        return new OverlayDiff.EnabledOverlays() {
+            @Override
+            public boolean isEnabled(String overlay) {
+                return overlays.contains(overlay);
+            }
+        };
+    }
+}
@@ -16,93 +16,84 @@
 
 package com.dirtyunicorns.themes;
 
-import static com.dirtyunicorns.themes.utils.duUtils.setForegroundDrawable;
-
-import android.app.AlertDialog;
-import android.app.Dialog;
-import android.app.DialogFragment;
-import android.content.Context;
-import android.content.DialogInterface;
-import android.content.SharedPreferences;
-import android.os.Bundle;
-import android.view.LayoutInflater;
 import android.view.View;
-import android.widget.Button;
-
-import androidx.preference.PreferenceManager;
 
-import com.android.internal.util.du.ThemesUtils;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
 
-public class AccentPicker extends DialogFragment {
+public class AccentPicker extends OverlayPicker {
 
     public static final String TAG_ACCENT_PICKER = "accent_picker";
 
-    private Context mContext;
-    private SharedPreferences mSharedPreferences;
-    private SharedPreferences.Editor mSharedPreferencesEditor;
-    private String[] mAccentButtons;
-    private View mView;
-
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        mContext = getActivity();
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-        mSharedPreferencesEditor = mSharedPreferences.edit();
-        mAccentButtons = getResources().getStringArray(R.array.accent_picker_buttons);
+    // Same order as ThemesUtils.ACCENTS
+    private static final int[] ACCENT_BUTTONS = {
+            R.id.spaceAccent,
+            R.id.purpleAccent,
+            R.id.orchidAccent,
+            R.id.oceanAccent,
+            R.id.greenAccent,
+            R.id.cinnamonAccent,
+            R.id.amethystAccent,
+            R.id.aquamarineAccent,
+            R.id.carbonAccent,
+            R.id.paletteAccent,
+            R.id.sandAccent,
+            R.id.tangerineAccent,
+            R.id.amberAccent,
+            R.id.azureradianceAccent,
+            R.id.blueAccent,
+            R.id.blueGreyAccent,
+            R.id.brownAccent,
+            R.id.cyanAccent,
+            R.id.deepOrangeAccent,
+            R.id.deepPurpleAccent,
+            R.id.greyAccent,
+            R.id.indigoAccent,
+            R.id.lightBlueAccent,
+            R.id.lightGreenAccent,
+            R.id.limeAccent,
+            R.id.orangeAccent,
+            R.id.pinkAccent,
+            R.id.redAccent,
+            R.id.tealAccent,
+            R.id.yellowAccent,
+            R.id.AndroidOneGreenAccent,
+            R.id.CocaColaRedAccent,
+            R.id.DiscordPurpleAccent,
+            R.id.FacebookBlueAccent,
+            R.id.InstagramCeriseAccent,
+            R.id.JollibeeCrimsonAccent,
+            R.id.MonsterEnergyGreenAccent,
+            R.id.NextbitMintAccent,
+            R.id.OneplusRedAccent,
+            R.id.PepsiBlueAccent,
+            R.id.PocophoneYellowAccent,
+            R.id.RazerGreenAccent,
+            R.id.SamsungBlueAccent,
+            R.id.SpotifyGreenAccent,
+            R.id.StarbucksGreenAccent,
+            R.id.TwitchPurpleAccent,
+            R.id.TwitterBlueAccent,
+            R.id.XboxGreenAccent,
+            R.id.XiaomiOrangeAccent
+    };
+
+    public AccentPicker() {
     }
 
-    @Override
-    public Dialog onCreateDialog(Bundle savedInstanceState) {
-
-        AlertDialog.Builder builder = new AlertDialog.Builder(
-                getActivity(), R.style.AccentDialogTheme);
-        LayoutInflater inflater = getActivity().getLayoutInflater();
-        mView = inflater.inflate(R.layout.accent_picker, null);
-
-        if (mView != null) {
-            initView();
-        }
-
-        builder.setNegativeButton(mContext.getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                dialog.cancel();
-            }
-        });
-
-        builder.setNeutralButton(mContext.getString(R.string.theme_accent_picker_default), new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                mSharedPreferencesEditor.remove("theme_accent_color");
-                mSharedPreferencesEditor.apply();
-                dialog.dismiss();
-            }
-        });
-
-        builder.setView(mView);
-
-        return builder.create();
+    public AccentPicker(ThemesListener themesListener) {
+        super(themesListener);
     }
 
-    private void initView() {
-        for (int i = 0; i < mAccentButtons.length; i++) {
-            int buttonId = getResources().getIdentifier(mAccentButtons[i], "id", mContext.getPackageName());
-            Button button = (Button) mView.findViewById(buttonId);
-            String accent = ThemesUtils.ACCENTS[i];
-            setAccent(accent, button);
-            setForegroundDrawable(accent, button, getActivity());
-        }
+    @Override
+    protected Descriptor getDescriptor() {
+        return new Descriptor(OverlayCategory.ACCENT, R.layout.accent_picker,
+                ACCENT_BUTTONS, true);
     }
 
-    private void setAccent(final String accent, Button buttonAccent) {
-        if (buttonAccent != null) {
-            buttonAccent.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    mSharedPreferencesEditor.putString("theme_accent_color", accent);
-                    mSharedPreferencesEditor.apply();
-                    dismiss();
-                }
-            });
-        }
+    @Override
+    protected void onBindItem(View item, String overlay, boolean enabled) {
+        // Only the enabled accent carries the checkmark
+        item.setForeground(enabled ? getResources().getDrawable(
+                R.drawable.accent_picker_checkmark, null) : null);
     }
 }
@@ -16,6 +16,7 @@
 
 package com.dirtyunicorns.themes;
 
+import static com.dirtyunicorns.themes.utils.duUtils.getWallpaperBackupDir;
 import static com.dirtyunicorns.themes.utils.duUtils.threeButtonNavbarEnabled;
 
 import android.app.AlertDialog;
@@ -47,6 +48,7 @@ import androidx.preference.PreferenceManager;
 
 import com.dirtyunicorns.themes.db.ThemeDatabase;
 import com.dirtyunicorns.themes.utils.ThemeDbUtils;
+import com.dirtyunicorns.themes.utils.ThemesTrace;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -200,10 +202,15 @@ public class BackupThemes extends DialogFragment {
     }
 
     private void addThemeBackup() {
-        mThemeDatabase.addThemeDbUtils(new ThemeDbUtils(mThemeName, isDarkMode(),
-            getIconsAccentColor(), getThemeNightColor(), getAccentPicker(),
-            getThemeSwitch(), getAdaptiveIconShape(), getFont(), getIconsShape(),
-            getSbIcons(), getThemeWp(), getNavbarStyle(), getQSTileStyle()));
+        ThemesTrace.beginAction("BackupThemes.backup");
+        try {
+            mThemeDatabase.addThemeDbUtils(new ThemeDbUtils(mThemeName, isDarkMode(),
+                getIconsAccentColor(), getThemeNightColor(), getAccentPicker(),
+                getThemeSwitch(), getAdaptiveIconShape(), getFont(), getIconsShape(),
+                getSbIcons(), getThemeWp(), getNavbarStyle(), getQSTileStyle()));
+        } finally {
+            ThemesTrace.endAction();
+        }
     }
 
     private int getThemeBackupPreview() {
@@ -355,15 +362,14 @@ public class BackupThemes extends DialogFragment {
     }
 
     private File getWallpaperBitmap() throws IOException {
-        File rootDir = new File(getContext().getFilesDir() + "WallpaperBackup");
-        if (!rootDir.exists()) {
-            rootDir.mkdirs();
-        }
+        File rootDir = getWallpaperBackupDir(getContext());
         File themeWpBackup = new File(rootDir + File.separator + mTimeStamp);
         try {
             Bitmap themeWpBitmap = ((BitmapDrawable) mWallpaperDrawable).getBitmap();
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ThemesTrace.beginSection("wallpaper encode");
             themeWpBitmap.compress(Bitmap.CompressFormat.PNG, 100, baos);
+            ThemesTrace.endSection();
             themeWpBackup.createNewFile();
             FileOutputStream fos = new FileOutputStream(themeWpBackup);
             fos.write(baos.toByteArray());
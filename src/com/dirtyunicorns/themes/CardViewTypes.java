@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes;
+
+public class CardViewTypes {
+
+    // Restore card layout for a saved theme. Plain Java with no framework
+    // dependencies, the host benchmark runs it as is.
+    public static int get(String themeQSTileStyle, String themeSbIcons) {
+        int themeViewType = 0;
+        // Rows saved before the QS style column have none, the stock style
+        if (themeQSTileStyle != null
+                && !themeQSTileStyle.equals("com.android.systemui.qstile.default")) {
+            switch (themeQSTileStyle) {
+                case "com.android.systemui.qstile.circletrim":
+                    themeViewType = 5;
+                    break;
+                case "com.android.systemui.qstile.dualtonecircletrim":
+                    themeViewType = 6;
+                    break;
+                case "com.android.systemui.qstile.squircletrim":
+                    themeViewType = 7;
+                    break;
+                case "com.android.systemui.qstile.attemptmountain":
+                    themeViewType = 8;
+                    break;
+                case "com.android.systemui.qstile.cosmos":
+                    themeViewType = 9;
+                    break;
+                case "com.android.systemui.qstile.dottedcircle":
+                    themeViewType = 10;
+                    break;
+                case "com.android.systemui.qstile.ninja":
+                    themeViewType = 11;
+                    break;
+                case "com.android.systemui.qstile.pokesign":
+                    themeViewType = 12;
+                    break;
+                case "com.android.systemui.qstile.wavey":
+                    themeViewType = 13;
+                    break;
+            }
+        } else {
+            themeViewType = Integer.parseInt(themeSbIcons);
+        }
+        return themeViewType;
+    }
+}
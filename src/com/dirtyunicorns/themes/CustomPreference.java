@@ -16,15 +16,61 @@
 
 package com.dirtyunicorns.themes;
 
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_QSTILE_STYLE;
+
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.AttributeSet;
 
 import androidx.preference.Preference;
+import androidx.preference.PreferenceManager;
+
+import com.dirtyunicorns.themes.utils.OverlayState;
 
-import com.android.internal.util.du.Utils;
+import java.util.Objects;
 
 public class CustomPreference extends Preference {
 
+    private static final String PREF_ICON_PACK = "wp_preview_icon_pack";
+
+    // Icon packs take precedence over tile styles, first match wins
+    private static final String[] ICON_PACKS = {
+            "com.android.theme.icon_pack.filled.android",
+            "com.android.theme.icon_pack.rounded.android",
+            "com.android.theme.icon_pack.circular.android"
+    };
+    private static final int[] ICON_PACK_LAYOUTS = {
+            R.layout.themes_main_filled,
+            R.layout.themes_main_rounded,
+            R.layout.themes_main_circular
+    };
+    private static final String[] TILE_STYLES = {
+            "com.android.systemui.qstile.circletrim",
+            "com.android.systemui.qstile.dualtonecircletrim",
+            "com.android.systemui.qstile.squircletrim",
+            "com.android.systemui.qstile.attemptmountain",
+            "com.android.systemui.qstile.cosmos",
+            "com.android.systemui.qstile.dottedcircle",
+            "com.android.systemui.qstile.ninja",
+            "com.android.systemui.qstile.pokesign",
+            "com.android.systemui.qstile.wavey"
+    };
+    private static final int[] TILE_STYLE_LAYOUTS = {
+            R.layout.themes_main_circletrim,
+            R.layout.themes_main_dualtonecircletrim,
+            R.layout.themes_main_squircletrim,
+            R.layout.themes_main_attemptmountain,
+            R.layout.themes_main_cosmos,
+            R.layout.themes_main_dottedcircle,
+            R.layout.themes_main_ninja,
+            R.layout.themes_main_pokesign,
+            R.layout.themes_main_wavey
+    };
+
+    private SharedPreferences mSharedPreferences;
+    private String mIconPack;
+    private String mTileStyle;
+
     public CustomPreference(Context context) {
         super(context);
         setResources();
@@ -45,33 +91,60 @@ public class CustomPreference extends Preference {
         setResources();
     }
 
-    public void setResources() {
-        if (Utils.isThemeEnabled("com.android.theme.icon_pack.filled.android")) {
-            setLayoutResource(R.layout.themes_main_filled);
-        } else if (Utils.isThemeEnabled("com.android.theme.icon_pack.rounded.android")) {
-            setLayoutResource(R.layout.themes_main_rounded);
-        } else if (Utils.isThemeEnabled("com.android.theme.icon_pack.circular.android")) {
-            setLayoutResource(R.layout.themes_main_circular);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.circletrim")) {
-            setLayoutResource(R.layout.themes_main_circletrim);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.dualtonecircletrim")) {
-            setLayoutResource(R.layout.themes_main_dualtonecircletrim);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.squircletrim")) {
-            setLayoutResource(R.layout.themes_main_squircletrim);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.attemptmountain")) {
-            setLayoutResource(R.layout.themes_main_attemptmountain);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.cosmos")) {
-            setLayoutResource(R.layout.themes_main_cosmos);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.dottedcircle")) {
-            setLayoutResource(R.layout.themes_main_dottedcircle);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.ninja")) {
-            setLayoutResource(R.layout.themes_main_ninja);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.pokesign")) {
-            setLayoutResource(R.layout.themes_main_pokesign);
-        } else if (Utils.isTileStyleEnabled("com.android.systemui.qstile.wavey")) {
-            setLayoutResource(R.layout.themes_main_wavey);
-        } else {
-            setLayoutResource(R.layout.themes_main);
+    // Inflation only looks at the stored overlays, the live state comes in
+    // later through setOverlayState()
+    private void setResources() {
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(getContext());
+        mIconPack = mSharedPreferences.getString(PREF_ICON_PACK, null);
+        mTileStyle = mSharedPreferences.getString(PREF_THEME_QSTILE_STYLE, null);
+        setLayoutResource(getPreviewLayout());
+    }
+
+    public void setOverlayState(OverlayState state) {
+        String iconPack = getEnabled(state, ICON_PACKS);
+        if (!Objects.equals(iconPack, mIconPack)) {
+            mSharedPreferences.edit().putString(PREF_ICON_PACK, iconPack).apply();
+        }
+        updatePreview(iconPack, getEnabled(state, TILE_STYLES));
+    }
+
+    public void setTileStyle(String tileStyle) {
+        updatePreview(mIconPack, tileStyle);
+    }
+
+    private void updatePreview(String iconPack, String tileStyle) {
+        if (Objects.equals(iconPack, mIconPack) && Objects.equals(tileStyle, mTileStyle)) {
+            return;
+        }
+        mIconPack = iconPack;
+        mTileStyle = tileStyle;
+        int layout = getPreviewLayout();
+        if (layout != getLayoutResource()) {
+            setLayoutResource(layout);
+            notifyHierarchyChanged();
+        }
+    }
+
+    private int getPreviewLayout() {
+        for (int i = 0; i < ICON_PACKS.length; i++) {
+            if (ICON_PACKS[i].equals(mIconPack)) {
+                return ICON_PACK_LAYOUTS[i];
+            }
+        }
+        for (int i = 0; i < TILE_STYLES.length; i++) {
+            if (TILE_STYLES[i].equals(mTileStyle)) {
+                return TILE_STYLE_LAYOUTS[i];
+            }
+        }
+        return R.layout.themes_main;
+    }
+
+    private static String getEnabled(OverlayState state, String[] overlays) {
+        for (String overlay : overlays) {
+            if (state.isEnabled(overlay)) {
+                return overlay;
+            }
         }
+        return null;
     }
 }
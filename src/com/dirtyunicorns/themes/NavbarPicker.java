@@ -16,90 +16,35 @@
 
 package com.dirtyunicorns.themes;
 
-import android.app.AlertDialog;
-import android.app.Dialog;
-import android.app.DialogFragment;
-import android.content.Context;
-import android.content.DialogInterface;
-import android.content.SharedPreferences;
-import android.os.Bundle;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.widget.RelativeLayout;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
 
-import androidx.preference.PreferenceManager;
-
-import com.android.internal.util.du.ThemesUtils;
-
-public class NavbarPicker extends DialogFragment {
+public class NavbarPicker extends OverlayPicker {
 
     public static final String TAG_NAVBAR_PICKER = "navbar_picker";
 
-    private Context mContext;
-    private SharedPreferences mSharedPreferences;
-    private SharedPreferences.Editor mSharedPreferencesEditor;
-    private String[] mNavbarLayouts;
-    private View mView;
-
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        mContext = getActivity();
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-        mSharedPreferencesEditor = mSharedPreferences.edit();
-        mNavbarLayouts = getResources().getStringArray(R.array.navbar_picker_layouts);
+    // Same order as ThemesUtils.NAVBAR_STYLES
+    private static final int[] NAVBAR_LAYOUTS = {
+            R.id.android_layout,
+            R.id.asus_layout,
+            R.id.moto_layout,
+            R.id.nexus_layout,
+            R.id.old_layout,
+            R.id.oneplus_layout,
+            R.id.oneui_layout,
+            R.id.sammy_layout,
+            R.id.tecno_layout
+    };
+
+    public NavbarPicker() {
     }
 
-    @Override
-    public Dialog onCreateDialog(Bundle savedInstanceState) {
-        AlertDialog.Builder builder = new AlertDialog.Builder(
-                getActivity(), R.style.AccentDialogTheme);
-        LayoutInflater inflater = getActivity().getLayoutInflater();
-        mView = inflater.inflate(R.layout.navbar_picker, null);
-
-        if (mView != null) {
-            initView();
-        }
-
-        builder.setNegativeButton(mContext.getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                dialog.cancel();
-            }
-        });
-
-        builder.setNeutralButton(mContext.getString(R.string.theme_accent_picker_default), new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                mSharedPreferencesEditor.remove("theme_navbar_style");
-                mSharedPreferencesEditor.apply();
-                dialog.dismiss();
-            }
-        });
-
-        builder.setView(mView);
-
-        return builder.create();
+    public NavbarPicker(ThemesListener themesListener) {
+        super(themesListener);
     }
 
-    private void initView() {
-        for (int i = 0; i < mNavbarLayouts.length; i++) {
-            int layoutId = getResources().getIdentifier(mNavbarLayouts[i], "id", mContext.getPackageName());
-            RelativeLayout layout = (RelativeLayout) mView.findViewById(layoutId);
-            String overlay = ThemesUtils.NAVBAR_STYLES[i];
-            setNavbarStyle(overlay, layout);
-        }
-    }
-
-    private void setNavbarStyle(final String overlay, final RelativeLayout layout) {
-        if (layout != null) {
-            layout.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    mSharedPreferencesEditor.remove("theme_navbar_style");
-                    mSharedPreferencesEditor.putString("theme_navbar_style", overlay);
-                    mSharedPreferencesEditor.apply();
-                    dismiss();
-                }
-            });
-        }
+    @Override
+    protected Descriptor getDescriptor() {
+        return new Descriptor(OverlayCategory.NAVBAR, R.layout.navbar_picker,
+                NAVBAR_LAYOUTS, true);
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import com.dirtyunicorns.themes.utils.OverlayApplyQueue;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
+import com.dirtyunicorns.themes.utils.OverlayChangeSet;
+import com.dirtyunicorns.themes.utils.OverlayState;
+import com.dirtyunicorns.themes.utils.OverlayStateModel;
+
+public abstract class OverlayPicker extends DialogFragment {
+
+    // What a picker edits: the overlay category, the grid layout and the
+    // ids of its items in the same order as the category overlays
+    public static class Descriptor {
+
+        final OverlayCategory mCategory;
+        final int mLayout;
+        final int[] mItemIds;
+        final boolean mShowDefault;
+
+        public Descriptor(OverlayCategory category, int layout, int[] itemIds,
+                boolean showDefault) {
+            mCategory = category;
+            mLayout = layout;
+            mItemIds = itemIds;
+            mShowDefault = showDefault;
+        }
+    }
+
+    private Context mContext;
+    private Descriptor mDescriptor;
+    private ThemesListener mThemesListener;
+    private View mView;
+
+    // The grid is shown right away, the checkmarks follow once the model
+    // has a snapshot instead of querying the overlay service here
+    private final OverlayStateModel.Listener mOverlayStateListener =
+            new OverlayStateModel.Listener() {
+        @Override
+        public void onOverlayStateChanged(OverlayState state, int version) {
+            bindItems(state);
+        }
+    };
+
+    public OverlayPicker() {
+    }
+
+    public OverlayPicker(ThemesListener themesListener) {
+        mThemesListener = themesListener;
+    }
+
+    protected abstract Descriptor getDescriptor();
+
+    // Called for every item whenever the enabled overlay is known
+    protected void onBindItem(View item, String overlay, boolean enabled) {
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mContext = getActivity();
+        mDescriptor = getDescriptor();
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(
+                getActivity(), R.style.AccentDialogTheme);
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+        mView = inflater.inflate(mDescriptor.mLayout, null);
+
+        if (mView != null) {
+            initView();
+        }
+
+        builder.setNegativeButton(mContext.getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.cancel();
+            }
+        });
+
+        if (mDescriptor.mShowDefault) {
+            builder.setNeutralButton(mContext.getString(R.string.theme_accent_picker_default), new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    applyOverlay(mDescriptor.mCategory.getDefaultValue());
+                    dialog.dismiss();
+                }
+            });
+        }
+
+        builder.setView(mView);
+
+        return builder.create();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        OverlayStateModel.getInstance(mContext).removeListener(mOverlayStateListener);
+    }
+
+    private void initView() {
+        String[] overlays = mDescriptor.mCategory.getOverlays();
+        for (int i = 0; i < mDescriptor.mItemIds.length && i < overlays.length; i++) {
+            View item = mView.findViewById(mDescriptor.mItemIds[i]);
+            if (item != null) {
+                setOverlay(overlays[i], item);
+            }
+        }
+        // The dialog can be recreated, keep a single registration
+        OverlayStateModel model = OverlayStateModel.getInstance(mContext);
+        model.removeListener(mOverlayStateListener);
+        model.addListener(mOverlayStateListener);
+    }
+
+    // One snapshot for the whole grid
+    private void bindItems(OverlayState state) {
+        if (mView == null) {
+            return;
+        }
+        String[] overlays = mDescriptor.mCategory.getOverlays();
+        String enabledOverlay = state.getEnabledOverlay(overlays);
+        for (int i = 0; i < mDescriptor.mItemIds.length && i < overlays.length; i++) {
+            View item = mView.findViewById(mDescriptor.mItemIds[i]);
+            if (item != null) {
+                onBindItem(item, overlays[i], overlays[i].equals(enabledOverlay));
+            }
+        }
+    }
+
+    private void setOverlay(final String overlay, View item) {
+        item.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                applyOverlay(overlay);
+                dismiss();
+            }
+        });
+    }
+
+    private void applyOverlay(String value) {
+        OverlayChangeSet changeSet = new OverlayChangeSet()
+                .setCategory(mDescriptor.mCategory, value);
+        if (mThemesListener != null) {
+            mThemesListener.onOverlayPicked(changeSet);
+        } else {
+            OverlayApplyQueue.getInstance(mContext).submit(changeSet, null);
+        }
+    }
+}
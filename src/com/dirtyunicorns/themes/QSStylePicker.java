@@ -16,81 +16,36 @@
 
 package com.dirtyunicorns.themes;
 
-import android.app.AlertDialog;
-import android.app.Dialog;
-import android.app.DialogFragment;
-import android.content.Context;
-import android.content.DialogInterface;
-import android.content.SharedPreferences;
-import android.os.Bundle;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.widget.RelativeLayout;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
 
-import androidx.preference.PreferenceManager;
-
-import com.android.internal.util.du.ThemesUtils;
-
-public class QSStylePicker extends DialogFragment {
+public class QSStylePicker extends OverlayPicker {
 
     public static final String TAG_QSSTYLE_PICKER = "qsstyle_picker";
 
-    private Context mContext;
-    private SharedPreferences mSharedPreferences;
-    private SharedPreferences.Editor mSharedPreferencesEditor;
-    private String[] mQSStyleLayouts;
-    private View mView;
-
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        mContext = getActivity();
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-        mSharedPreferencesEditor = mSharedPreferences.edit();
-        mQSStyleLayouts = getResources().getStringArray(R.array.qsstyle_picker_layouts);
+    // Same order as ThemesUtils.QS_TILE_THEMES
+    private static final int[] QSSTYLE_LAYOUTS = {
+            R.id.qstile_default,
+            R.id.qstile_circle_trim,
+            R.id.qstile_dual_tone_circle,
+            R.id.qstile_squircle_trim,
+            R.id.qstile_attempt_mountain,
+            R.id.qstile_cosmos,
+            R.id.qstile_dotted_circle,
+            R.id.qstile_ninja,
+            R.id.qstile_poke_sign,
+            R.id.qstile_wavey
+    };
+
+    public QSStylePicker() {
     }
 
-    @Override
-    public Dialog onCreateDialog(Bundle savedInstanceState) {
-        AlertDialog.Builder builder = new AlertDialog.Builder(
-                getActivity(), R.style.AccentDialogTheme);
-        LayoutInflater inflater = getActivity().getLayoutInflater();
-        mView = inflater.inflate(R.layout.qsstyle_picker, null);
-
-        if (mView != null) {
-            initView();
-        }
-
-        builder.setNegativeButton(mContext.getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
-            public void onClick(DialogInterface dialog, int which) {
-                dialog.cancel();
-            }
-        });
-
-        builder.setView(mView);
-        return builder.create();
+    public QSStylePicker(ThemesListener themesListener) {
+        super(themesListener);
     }
 
-    private void initView() {
-        for (int i = 0; i < mQSStyleLayouts.length; i++) {
-            int layoutId = getResources().getIdentifier(mQSStyleLayouts[i], "id", mContext.getPackageName());
-            RelativeLayout layout = (RelativeLayout) mView.findViewById(layoutId);
-            String overlay = ThemesUtils.QS_TILE_THEMES[i];
-            setQsstyleStyle(overlay, layout);
-        }
-    }
-
-    private void setQsstyleStyle(final String overlay, final RelativeLayout layout) {
-        if (layout != null) {
-            layout.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    mSharedPreferencesEditor.remove("theme_qstile_style");
-                    mSharedPreferencesEditor.putString("theme_qstile_style", overlay);
-                    mSharedPreferencesEditor.apply();
-                    dismiss();
-                }
-            });
-        }
+    @Override
+    protected Descriptor getDescriptor() {
+        return new Descriptor(OverlayCategory.QS_TILE_STYLE, R.layout.qsstyle_picker,
+                QSSTYLE_LAYOUTS, false);
     }
 }
@@ -21,11 +21,8 @@ import static com.dirtyunicorns.themes.utils.duUtils.threeButtonNavbarEnabled;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.WallpaperManager;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.text.InputFilter;
 import android.view.LayoutInflater;
@@ -39,6 +36,7 @@ import android.widget.EditText;
 import android.widget.CompoundButton;
 import android.widget.RelativeLayout;
 import android.widget.Switch;
+import android.widget.Toast;
 
 import androidx.preference.PreferenceManager;
 import androidx.recyclerview.widget.DefaultItemAnimator;
@@ -48,18 +46,23 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.recyclerview.widget.SnapHelper;
 
 import com.dirtyunicorns.themes.db.ThemeDatabase;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
+import com.dirtyunicorns.themes.utils.OverlayApplyQueue;
+import com.dirtyunicorns.themes.utils.OverlayChangeSet;
 import com.dirtyunicorns.themes.utils.ThemeDbUtils;
 import com.dirtyunicorns.themes.utils.ThemesListItem;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class RestoreThemes extends Activity implements CompoundButton.OnCheckedChangeListener {
 
     public static final String TAG_RESTORE_THEMES = "restore_themes";
 
+    // Cards on either side of the current one snapshotted ahead of a swipe
+    private static final int SNAPSHOT_AHEAD = 2;
+
     private ArrayList<String> mSwitchList;
     private int mNumSwitches = 8;
     private int mSwitchId;
@@ -70,11 +73,13 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
     private SharedPreferences mSharedPreferences;
     private SharedPreferences.Editor mSharedPrefEditor;
     private ThemesAdapter mThemesAdapter;
+    private ThemeSnapshots mThemeSnapshots;
     private ThemeDatabase mThemeDatabase;
-    private WallpaperManager mWallpaperManager;
+    private ApplyCallback mApplyCallback;
 
     private Button mDeleteTheme;
     private Button mApplyTheme;
+    private boolean mApplying;
     private Switch[] mSwitchArray;
     private Switch mThemeSwitch;
     private Switch mAccentSwitch;
@@ -127,11 +132,12 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
         }
         mThemesList = new ArrayList<>();
         mThemesAdapter = new ThemesAdapter(this, mThemesList);
+        mThemeSnapshots = new ThemeSnapshots(this);
+        mThemesAdapter.setSnapshots(mThemeSnapshots);
         mThemeDatabase = new ThemeDatabase(this);
         mLayoutManager = new LinearLayoutManager(this, LinearLayoutManager.HORIZONTAL, false);
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         mSharedPrefEditor = mSharedPreferences.edit();
-        mWallpaperManager = WallpaperManager.getInstance(this);
 
         mThemesRecyclerView = (RecyclerView) findViewById(R.id.themeRecyclerView);
         mThemesRecyclerView.setHasFixedSize(true);
@@ -139,6 +145,14 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
         mThemesRecyclerView.setItemAnimator(new DefaultItemAnimator());
         mThemesRecyclerView.setNestedScrollingEnabled(true);
         mThemesRecyclerView.setAdapter(mThemesAdapter);
+        mThemesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    renderSnapshots();
+                }
+            }
+        });
 
         mThemesRecyclerView.getViewTreeObserver().addOnScrollChangedListener(new ViewTreeObserver.OnScrollChangedListener() {
             @Override
@@ -164,8 +178,13 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
         mDeleteTheme.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
+                String themeWp = mThemesList.get(getCurrentItem()).getThemeWp();
                 mThemeDatabase.deleteThemeDbUtils(mThemesList.get(getCurrentItem()).getThemeName());
-                getWallpaperBackupFile().delete();
+                mThemeSnapshots.invalidate(mThemesList.get(getCurrentItem()).getThemeName());
+                // Imported themes may share a wallpaper, keep it while still referenced
+                if (mThemeDatabase.getThemeWpReferenceCount(themeWp) == 0) {
+                    new File(themeWp).delete();
+                }
                 if (hasPreview() || hasNext()) {
                     setThemesData();
                 } else {
@@ -242,6 +261,15 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
         Themes.setSharedPrefListener(true);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mApplyCallback != null) {
+            mApplyCallback.clear();
+        }
+        mThemeSnapshots.quit();
+    }
+
     @Override
     public void onStop() {
         super.onStop();
@@ -327,123 +355,134 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
     }
 
     private void applyThemeBackup() {
-        applyThemeSwitch();
-        applyThemeFont();
-        applyThemeIconShape();
-        applyThemeSbIcons();
-        applyThemeAccent();
-        applyThemeNavbarStyle();
-        applyThemeQSTileStyle();
-        applyThemeWp();
-    }
-
-    private void applyThemeSwitch() {
+        ThemesListItem theme = mThemesList.get(getCurrentItem());
+        final OverlayChangeSet changeSet = new OverlayChangeSet();
         if (mThemeSwitch.isChecked()) {
-            String newValue = mThemesList.get(getCurrentItem()).getThemeSwitch();
-            mSharedPrefEditor.putString("theme_switch", newValue);
-            mSharedPrefEditor.apply();
+            changeSet.setThemeSwitch(theme.getThemeSwitch());
         }
-    }
-
-    private void applyThemeFont() {
         if (mFontSwitch.isChecked()) {
-            String newValue = mThemesList.get(getCurrentItem()).getThemeFont();
-            mSharedPrefEditor.putString("font_picker", newValue);
-            mSharedPrefEditor.apply();
+            changeSet.setCategory(OverlayCategory.FONT, theme.getThemeFont());
         }
-    }
-
-    private void applyThemeIconShape() {
         if (mIconShapeSwitch.isChecked()) {
-            String newValue = mThemesList.get(getCurrentItem()).getAdaptiveIconShape();
-            mSharedPrefEditor.putString("adapative_icon_shape", newValue);
-            mSharedPrefEditor.apply();
+            changeSet.setCategory(OverlayCategory.ADAPTIVE_ICON_SHAPE,
+                    theme.getAdaptiveIconShape());
         }
-    }
-
-    private void applyThemeSbIcons() {
         if (mSbIconSwitch.isChecked()) {
-            String newValue = mThemesList.get(getCurrentItem()).getThemeSbIcons();
-            mSharedPrefEditor.putString("statusbar_icons", newValue);
-            mSharedPrefEditor.apply();
+            changeSet.setCategory(OverlayCategory.STATUSBAR_ICONS, theme.getThemeSbIcons());
         }
-    }
-
-    private void applyThemeAccent() {
         if (mAccentSwitch.isChecked()) {
-            String newValue = mThemesList.get(getCurrentItem()).getAccentPicker();
-            mSharedPrefEditor.putString("theme_accent_color", newValue);
-            mSharedPrefEditor.apply();
+            changeSet.setCategory(OverlayCategory.ACCENT, theme.getAccentPicker());
         }
-    }
-
-    private void applyThemeNavbarStyle() {
-        if (threeButtonNavbarEnabled(this)) {
-            if (mNavbarSwitch.isChecked()) {
-                String newValue = mThemesList.get(getCurrentItem()).getThemeNavbarStyle();
-                mSharedPrefEditor.putString("theme_navbar_style", newValue);
-                mSharedPrefEditor.apply();
-            }
+        if (threeButtonNavbarEnabled(this) && mNavbarSwitch.isChecked()) {
+            changeSet.setCategory(OverlayCategory.NAVBAR, theme.getThemeNavbarStyle());
         }
-    }
-
-    private void applyThemeQSTileStyle() {
         if (mQSTileSwitch.isChecked()) {
-            String newValue = mThemesList.get(getCurrentItem()).getThemeQSTileStyle();
-            mSharedPrefEditor.putString("theme_qstile_style", newValue);
-            mSharedPrefEditor.apply();
+            changeSet.setCategory(OverlayCategory.QS_TILE_STYLE, theme.getThemeQSTileStyle());
+        }
+        if (mWpSwitch.isChecked()) {
+            changeSet.setWallpaper(theme.getThemeWp());
         }
+        mApplyTheme.setEnabled(false);
+        OverlayApplyQueue.getInstance(this).preview(changeSet,
+                new OverlayApplyQueue.PreviewCallback() {
+            @Override
+            public void onPreview(int changes) {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (changes == 0) {
+                    mApplyTheme.setEnabled(true);
+                    Toast.makeText(RestoreThemes.this, R.string.theme_restore_no_changes_toast,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                confirmThemeBackup(changeSet, changes);
+            }
+        });
     }
 
-    private void applyThemeWp() {
-        if (mWpSwitch.isChecked()) {
-            new Thread() {
-                @Override
-                public void run() {
-                    try {
-                        Bitmap themeWpBitmap = BitmapFactory.decodeFile(
-                                getWallpaperBackupFile().getPath());
-                        mWallpaperManager.setBitmap(themeWpBitmap, null,
-                                false, WallpaperManager.FLAG_SYSTEM);
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+    private void confirmThemeBackup(final OverlayChangeSet changeSet, int changes) {
+        new AlertDialog.Builder(this, R.style.AccentDialogTheme)
+                .setTitle(R.string.theme_restore_title)
+                .setMessage(getString(R.string.theme_restore_confirm_message, changes))
+                .setPositiveButton(R.string.theme_button_apply_theme,
+                        new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        submitThemeBackup(changeSet);
                     }
-                }
-            }.start();
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .setOnDismissListener(new DialogInterface.OnDismissListener() {
+                    @Override
+                    public void onDismiss(DialogInterface dialog) {
+                        if (!mApplying) {
+                            mApplyTheme.setEnabled(true);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void submitThemeBackup(OverlayChangeSet changeSet) {
+        mApplying = true;
+        mApplyCallback = new ApplyCallback(this);
+        OverlayApplyQueue.getInstance(this).submit(changeSet, mApplyCallback);
+    }
+
+    private void onApplyProgress(int applied, int total) {
+        mApplyTheme.setText(getString(R.string.theme_button_applying_theme,
+                applied, total));
+    }
+
+    private void onApplyUserComplete(int userId, boolean success) {
+        if (!success) {
+            Toast.makeText(this,
+                    getString(R.string.theme_apply_user_failed_toast, userId),
+                    Toast.LENGTH_SHORT).show();
         }
     }
 
-    private File getWallpaperBackupFile() {
-        String themeWpBackup = mThemesList.get(getCurrentItem()).getThemeWp();
-        File wpFile = new File(themeWpBackup);
-        return wpFile;
+    private void onApplyComplete(boolean success, int changes) {
+        mApplying = false;
+        mApplyCallback = null;
+        mApplyTheme.setEnabled(true);
+        mApplyTheme.setText(R.string.theme_button_apply_theme);
+        if (!success) {
+            Toast.makeText(this, R.string.theme_apply_failed_toast,
+                    Toast.LENGTH_LONG).show();
+        } else if (changes == 0) {
+            Toast.makeText(this, R.string.theme_restore_no_changes_toast,
+                    Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this,
+                    getString(R.string.theme_restore_changes_toast, changes),
+                    Toast.LENGTH_SHORT).show();
+        }
     }
 
     private void setThemesData() {
         mThemesList.clear();
-        List<ThemeDbUtils> themesDatabaseList = mThemeDatabase.getAllThemeDbUtils();
-        for (ThemeDbUtils themes : themesDatabaseList) {
-            String themeName = themes.getThemeName();
-            String themeDayOrNight = themes.getThemeDayOrNight();
-            String themeAccent = themes.getThemeAccent();
-            String themeNightColor = themes.getThemeNightColor();
-            String accentPicker = themes.getAccentPicker();
-            String themeSwitch = themes.getThemeSwitch();
-            String adaptativeIconShape = themes.getAdaptiveIconShape();
-            String themeFont = themes.getThemeFont();
-            String themeIconShape = themes.getThemeIconShape();
-            String themeSbIcons = themes.getThemeSbIcons();
-            String themeWp = themes.getThemeWp();
-            String themeNavbarStyle = themes.getThemeNavbarStyle();
-            String themeQSTileStyle = themes.getThemeQSTileStyle();
-            mThemesList.add(new ThemesListItem(themeName, themeDayOrNight,
-                    themeAccent, themeNightColor, accentPicker, themeSwitch,
-                    adaptativeIconShape, themeFont, themeIconShape, themeSbIcons,
-                    themeWp, themeNavbarStyle, themeQSTileStyle));
-        }
+        mThemesList.addAll(ThemesListItem.fromSavedThemes(mThemeDatabase.getAllThemeDbUtils()));
         mThemesAdapter.notifyDataSetChanged();
-        assert mThemesList != null;
-        Collections.reverse(mThemesList);
+        mThemeSnapshots.prepare(mThemesList, new Runnable() {
+            @Override
+            public void run() {
+                // Cards that have a snapshot now bind as one
+                mThemesAdapter.notifyDataSetChanged();
+                renderSnapshots();
+            }
+        });
+    }
+
+    // Only the cards around the current one, the rest are rendered once
+    // they get close
+    private void renderSnapshots() {
+        int current = Math.max(getCurrentItem(), 0);
+        int end = Math.min(current + SNAPSHOT_AHEAD, mThemesList.size() - 1);
+        for (int i = Math.max(current - SNAPSHOT_AHEAD, 0); i <= end; i++) {
+            mThemeSnapshots.render(mThemesList.get(i), null);
+        }
     }
 
     private void renameTheme() {
@@ -495,6 +534,9 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
                         mThemesList.get(getCurrentItem()).getThemeNavbarStyle(),
                         mThemesList.get(getCurrentItem()).getThemeQSTileStyle()),
                         oldThemeName);
+                if (!newThemeName.equals(oldThemeName)) {
+                    mThemeSnapshots.invalidate(oldThemeName);
+                }
                 setThemesData();
                 dialog.dismiss();
             }
@@ -529,4 +571,46 @@ public class RestoreThemes extends Activity implements CompoundButton.OnCheckedC
                 return super.onOptionsItemSelected(item);
         }
     }
+
+    // The queue holds this until the change set has run, which can outlive
+    // the activity. It's cleared in onDestroy() so only this is held.
+    private static class ApplyCallback implements OverlayApplyQueue.Callback {
+        private RestoreThemes mActivity;
+
+        ApplyCallback(RestoreThemes activity) {
+            mActivity = activity;
+        }
+
+        void clear() {
+            mActivity = null;
+        }
+
+        private RestoreThemes getActivity() {
+            return mActivity != null && !mActivity.isDestroyed() ? mActivity : null;
+        }
+
+        @Override
+        public void onProgress(int applied, int total) {
+            RestoreThemes activity = getActivity();
+            if (activity != null) {
+                activity.onApplyProgress(applied, total);
+            }
+        }
+
+        @Override
+        public void onUserComplete(int userId, boolean success) {
+            RestoreThemes activity = getActivity();
+            if (activity != null) {
+                activity.onApplyUserComplete(userId, success);
+            }
+        }
+
+        @Override
+        public void onComplete(boolean success, int changes) {
+            RestoreThemes activity = getActivity();
+            if (activity != null) {
+                activity.onApplyComplete(success, changes);
+            }
+        }
+    }
 }
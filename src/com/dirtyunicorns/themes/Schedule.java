@@ -16,8 +16,10 @@
 
 package com.dirtyunicorns.themes;
 
+import android.Manifest;
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.TimePickerDialog;
 import android.content.ComponentName;
 import android.content.Context;
@@ -29,18 +31,29 @@ import android.os.Bundle;
 
 import android.view.MenuItem;
 import android.widget.TimePicker;
+import android.widget.Toast;
 
 import androidx.preference.DropDownPreference;
 import androidx.preference.ListPreference;
+import androidx.preference.Preference;
+import androidx.preference.PreferenceCategory;
 import androidx.preference.PreferenceFragment;
 import androidx.preference.PreferenceManager;
 import androidx.preference.SwitchPreference;
 
+import com.dirtyunicorns.themes.db.ThemeDatabase;
 import com.dirtyunicorns.themes.receivers.ThemesEndReceiver;
 import com.dirtyunicorns.themes.receivers.ThemesStartReceiver;
+import com.dirtyunicorns.themes.utils.ScheduleRule;
+import com.dirtyunicorns.themes.utils.SolarTime;
+import com.dirtyunicorns.themes.utils.ThemeDbUtils;
+import com.dirtyunicorns.themes.utils.ThemeScheduler;
 
 import java.text.DateFormat;
+import java.text.DateFormatSymbols;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 
 import static com.dirtyunicorns.themes.utils.duUtils.clearAlarms;
 import static com.dirtyunicorns.themes.utils.duUtils.getScheduledEndTheme;
@@ -52,9 +65,7 @@ import static com.dirtyunicorns.themes.utils.duUtils.getScheduledStartThemeSumma
 import static com.dirtyunicorns.themes.utils.duUtils.getScheduledStartThemeTime;
 import static com.dirtyunicorns.themes.utils.duUtils.getScheduledStartThemeValue;
 import static com.dirtyunicorns.themes.utils.duUtils.getThemeSchedule;
-import static com.dirtyunicorns.themes.utils.duUtils.setEndAlarm;
 import static com.dirtyunicorns.themes.utils.duUtils.setEndTime;
-import static com.dirtyunicorns.themes.utils.duUtils.setStartAlarm;
 import static com.dirtyunicorns.themes.utils.duUtils.setStartTime;
 
 public class Schedule extends Activity {
@@ -79,6 +90,9 @@ public class Schedule extends Activity {
         public static final String PREF_ALARM_START_TIME = "theme_scheduled_start_time";
         public static final String PREF_ALARM_END_TIME = "theme_scheduled_end_time";
         public static final String PREF_THEME_SCHEDULED_TOAST = "theme_schedule_toast";
+        private static final String PREF_THEME_SCHEDULE_RULES = "theme_schedule_rules";
+        private static final String PREF_THEME_SCHEDULE_ADD_RULE = "theme_schedule_add_rule";
+        private static final int REQUEST_LOCATION = 1;
 
         private Calendar mStartDate, mEndDate;
         private Context mContext;
@@ -92,6 +106,9 @@ public class Schedule extends Activity {
         private ListPreference mThemeScheduledEndTheme;
         private SwitchPreference mThemeScheduleRepeat;
         private SwitchPreference mThemeScheduleToast;
+        private PreferenceCategory mScheduleRules;
+        private Preference mAddScheduleRule;
+        private ThemeDatabase mThemeDatabase;
 
         private boolean scheduledStartTheme = false;
         private boolean scheduledEndTheme = false;
@@ -131,7 +148,20 @@ public class Schedule extends Activity {
             mThemeScheduleRepeat = (SwitchPreference) findPreference(PREF_THEME_SCHEDULED_REPEAT_DAILY);
             mThemeScheduleToast = (SwitchPreference) findPreference(PREF_THEME_SCHEDULED_TOAST);
 
+            // Weekly rules, independent of the start and end themes
+            mThemeDatabase = new ThemeDatabase(mContext);
+            mScheduleRules = (PreferenceCategory) findPreference(PREF_THEME_SCHEDULE_RULES);
+            mAddScheduleRule = findPreference(PREF_THEME_SCHEDULE_ADD_RULE);
+            mAddScheduleRule.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    showRuleDaysDialog();
+                    return true;
+                }
+            });
+
             updateThemeSchedule();
+            updateScheduleRules();
         }
 
         @Override
@@ -165,6 +195,18 @@ public class Schedule extends Activity {
                         mThemeScheduledStartTheme.setVisible(true);
                         mThemeScheduledStartTheme.setEnabled(true);
                         break;
+                    case ThemeScheduler.SCHEDULE_SOLAR:
+                        // The last known location needs the runtime grant,
+                        // ask before reading it
+                        if (mContext.checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION)
+                                != PackageManager.PERMISSION_GRANTED) {
+                            requestPermissions(new String[] {
+                                    Manifest.permission.ACCESS_COARSE_LOCATION
+                            }, REQUEST_LOCATION);
+                            break;
+                        }
+                        enableSolarSchedule();
+                        break;
                 }
                 mThemeSchedule.setSummary(mThemeSchedule.getEntry());
             }
@@ -176,7 +218,11 @@ public class Schedule extends Activity {
                 }
 
                 protected void onPostExecute(Void param) {
-                    showStartTimePicker();
+                    if (ThemeScheduler.isSolar(mSharedPreferences)) {
+                        onStartTimeSet(mContext.getString(R.string.theme_schedule_at_sunset));
+                    } else {
+                        showStartTimePicker();
+                    }
                 }
 
                 @Override
@@ -215,7 +261,11 @@ public class Schedule extends Activity {
                 }
 
                 protected void onPostExecute(Void param) {
-                    showEndTimePicker();
+                    if (ThemeScheduler.isSolar(mSharedPreferences)) {
+                        onEndTimeSet(mContext.getString(R.string.theme_schedule_at_sunrise));
+                    } else {
+                        showEndTimePicker();
+                    }
                 }
 
                 @Override
@@ -334,6 +384,9 @@ public class Schedule extends Activity {
                     scheduledEndTheme = true;
                 }
             }
+            if (ThemeScheduler.isSolar(mSharedPreferences)) {
+                mThemeScheduleRepeat.setVisible(false);
+            }
             if (mThemeScheduleRepeat != null) {
                 if (mThemeScheduleRepeat.isChecked()) {
                     sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_REPEAT_DAILY);
@@ -380,6 +433,197 @@ public class Schedule extends Activity {
             scheduledEndTheme = false;
         }
 
+        // Time is what the summary shows, a clock time or sunset/sunrise
+        private void onStartTimeSet(String time) {
+            ThemeScheduler.schedule(mContext);
+            ComponentName mStartReceiver = new ComponentName(mContext, ThemesStartReceiver.class);
+            mPm.setComponentEnabledSetting(mStartReceiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                    PackageManager.DONT_KILL_APP);
+            if (mThemeScheduledStartTheme != null) {
+                mThemeScheduledStartTheme.setTitle(getScheduledStartThemeSummary(mSharedPreferences, mContext)
+                        + " " + mContext.getString(R.string.theme_schedule_start_scheduled));
+                mThemeScheduledStartTheme.setSummary(time);
+                sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_START_TIME, time).commit();
+                mThemeScheduledStartTheme.setEnabled(false);
+                mThemeScheduledEndTheme.setVisible(true);
+                mThemeScheduledEndTheme.setEnabled(true);
+                mThemeScheduleRepeat.setEnabled(false);
+                scheduledStartTheme = true;
+            }
+        }
+
+        private void onEndTimeSet(String time) {
+            ThemeScheduler.schedule(mContext);
+            ComponentName mEndReceiver = new ComponentName(mContext, ThemesEndReceiver.class);
+            mPm.setComponentEnabledSetting(mEndReceiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                    PackageManager.DONT_KILL_APP);
+            if (mThemeScheduledEndTheme != null) {
+                mThemeScheduledEndTheme.setTitle(getScheduledEndThemeSummary(mSharedPreferences, mContext)
+                        + " " + mContext.getString(R.string.theme_schedule_start_scheduled));
+                mThemeScheduledEndTheme.setSummary(time);
+                sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_END_TIME, time).commit();
+                mThemeScheduledStartTheme.setEnabled(false);
+                mThemeScheduledEndTheme.setEnabled(false);
+                mThemeScheduleRepeat.setEnabled(false);
+                scheduledEndTheme = true;
+            }
+        }
+
+        @Override
+        public void onRequestPermissionsResult(int requestCode, String[] permissions,
+                int[] grantResults) {
+            if (requestCode != REQUEST_LOCATION) {
+                return;
+            }
+            if (grantResults.length > 0
+                    && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                enableSolarSchedule();
+            } else {
+                Toast.makeText(mContext, R.string.theme_schedule_location_denied,
+                        Toast.LENGTH_SHORT).show();
+                mThemeSchedule.setValue("1");
+            }
+        }
+
+        private void enableSolarSchedule() {
+            if (!SolarTime.updateLocation(mContext)) {
+                Toast.makeText(mContext, R.string.theme_schedule_no_location,
+                        Toast.LENGTH_SHORT).show();
+                mThemeSchedule.setValue("1");
+                return;
+            }
+            mThemeScheduleRepeat.setVisible(false);
+            mThemeScheduleToast.setVisible(true);
+            mThemeScheduleToast.setEnabled(true);
+            mThemeScheduledStartTheme.setVisible(true);
+            mThemeScheduledStartTheme.setEnabled(true);
+        }
+
+        private void updateScheduleRules() {
+            for (int i = mScheduleRules.getPreferenceCount() - 1; i >= 0; i--) {
+                Preference preference = mScheduleRules.getPreference(i);
+                if (preference != mAddScheduleRule) {
+                    mScheduleRules.removePreference(preference);
+                }
+            }
+            int order = 0;
+            for (final ScheduleRule rule : mThemeDatabase.getAllScheduleRules()) {
+                Preference preference = new Preference(getPreferenceManager().getContext());
+                preference.setOrder(order++);
+                preference.setTitle(rule.getThemeName());
+                preference.setSummary(getRuleSummary(rule));
+                preference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        showDeleteRuleDialog(rule);
+                        return true;
+                    }
+                });
+                mScheduleRules.addPreference(preference);
+            }
+        }
+
+        private String getRuleSummary(ScheduleRule rule) {
+            String days;
+            if (rule.getDays() == ScheduleRule.ALL_DAYS) {
+                days = mContext.getString(R.string.theme_schedule_rule_every_day);
+            } else if (rule.getDays() == ScheduleRule.WEEKDAYS) {
+                days = mContext.getString(R.string.theme_schedule_rule_weekdays);
+            } else if (rule.getDays() == ScheduleRule.WEEKEND) {
+                days = mContext.getString(R.string.theme_schedule_rule_weekend);
+            } else {
+                String[] dayNames = new DateFormatSymbols().getShortWeekdays();
+                StringBuilder builder = new StringBuilder();
+                for (int day = Calendar.SUNDAY; day <= Calendar.SATURDAY; day++) {
+                    if (rule.hasDay(day)) {
+                        if (builder.length() > 0) {
+                            builder.append(", ");
+                        }
+                        builder.append(dayNames[day]);
+                    }
+                }
+                days = builder.toString();
+            }
+            Calendar time = Calendar.getInstance();
+            time.set(Calendar.HOUR_OF_DAY, rule.getMinute() / 60);
+            time.set(Calendar.MINUTE, rule.getMinute() % 60);
+            return mContext.getString(R.string.theme_schedule_rule_summary, days,
+                    timeFormat.format(time.getTime()));
+        }
+
+        // Rules are added in three steps, the days, the time and then the
+        // saved theme to restore
+        private void showRuleDaysDialog() {
+            final List<String> themeNames = new ArrayList<>();
+            for (ThemeDbUtils theme : mThemeDatabase.getAllThemeDbUtils()) {
+                themeNames.add(theme.getThemeName());
+            }
+            if (themeNames.isEmpty()) {
+                Toast.makeText(mContext, R.string.theme_schedule_rule_no_themes,
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+            final int[] days = {
+                    ScheduleRule.ALL_DAYS, ScheduleRule.WEEKDAYS, ScheduleRule.WEEKEND
+            };
+            new AlertDialog.Builder(mContext)
+                    .setTitle(R.string.theme_schedule_rule_days_title)
+                    .setItems(new String[] {
+                            mContext.getString(R.string.theme_schedule_rule_every_day),
+                            mContext.getString(R.string.theme_schedule_rule_weekdays),
+                            mContext.getString(R.string.theme_schedule_rule_weekend)
+                    }, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            showRuleTimePicker(days[which], themeNames);
+                        }
+                    })
+                    .show();
+        }
+
+        private void showRuleTimePicker(final int days, final List<String> themeNames) {
+            Calendar now = Calendar.getInstance();
+            new TimePickerDialog(mContext, new TimePickerDialog.OnTimeSetListener() {
+                @Override
+                public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
+                    showRuleThemeDialog(days, hourOfDay * 60 + minute, themeNames);
+                }
+            }, now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), false).show();
+        }
+
+        private void showRuleThemeDialog(final int days, final int minute,
+                final List<String> themeNames) {
+            new AlertDialog.Builder(mContext)
+                    .setTitle(R.string.theme_schedule_rule_theme_title)
+                    .setItems(themeNames.toArray(new String[themeNames.size()]),
+                            new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            mThemeDatabase.addScheduleRule(new ScheduleRule(days, minute,
+                                    themeNames.get(which)));
+                            ThemeScheduler.schedule(mContext);
+                            updateScheduleRules();
+                        }
+                    })
+                    .show();
+        }
+
+        private void showDeleteRuleDialog(final ScheduleRule rule) {
+            new AlertDialog.Builder(mContext)
+                    .setTitle(R.string.theme_schedule_rule_delete_title)
+                    .setMessage(rule.getThemeName() + "\n" + getRuleSummary(rule))
+                    .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            mThemeDatabase.deleteScheduleRule(rule.getId());
+                            ThemeScheduler.schedule(mContext);
+                            updateScheduleRules();
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, null)
+                    .show();
+        }
+
         public void showStartTimePicker() {
             TimePickerDialog dialog = new TimePickerDialog(mContext, new TimePickerDialog.OnTimeSetListener() {
                 @Override
@@ -388,21 +632,7 @@ public class Schedule extends Activity {
                     mStartDate.set(Calendar.MINUTE, minute);
                     scheduledThemeStatus = 1;
                     setStartTime(mContext, mStartDate);
-                    setStartAlarm(mContext);
-                    ComponentName mStartReceiver = new ComponentName(mContext, ThemesStartReceiver.class);
-                    mPm.setComponentEnabledSetting(mStartReceiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                            PackageManager.DONT_KILL_APP);
-                    if (mThemeScheduledStartTheme != null) {
-                        mThemeScheduledStartTheme.setTitle(getScheduledStartThemeSummary(mSharedPreferences, mContext)
-                                + " " + mContext.getString(R.string.theme_schedule_start_scheduled));
-                        mThemeScheduledStartTheme.setSummary(timeFormat.format(mStartDate.getTime()));
-                        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_START_TIME, timeFormat.format(mStartDate.getTime())).commit();
-                        mThemeScheduledStartTheme.setEnabled(false);
-                        mThemeScheduledEndTheme.setVisible(true);
-                        mThemeScheduledEndTheme.setEnabled(true);
-                        mThemeScheduleRepeat.setEnabled(false);
-                        scheduledStartTheme = true;
-                    }
+                    onStartTimeSet(timeFormat.format(mStartDate.getTime()));
                 }
             }, mStartDate.get(Calendar.HOUR_OF_DAY), mStartDate.get(Calendar.MINUTE), false);
             dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
@@ -433,20 +663,7 @@ public class Schedule extends Activity {
                     mEndDate.set(Calendar.MINUTE, minute);
                     scheduledThemeStatus = 1;
                     setEndTime(mContext, mEndDate);
-                    setEndAlarm(mContext);
-                    ComponentName mEndReceiver = new ComponentName(mContext, ThemesEndReceiver.class);
-                    mPm.setComponentEnabledSetting(mEndReceiver, PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                            PackageManager.DONT_KILL_APP);
-                    if (mThemeScheduledEndTheme != null) {
-                        mThemeScheduledEndTheme.setTitle(getScheduledEndThemeSummary(mSharedPreferences, mContext)
-                                + " " + mContext.getString(R.string.theme_schedule_start_scheduled));
-                        mThemeScheduledEndTheme.setSummary(timeFormat.format(mEndDate.getTime()));
-                        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULED_END_TIME, timeFormat.format(mEndDate.getTime())).commit();
-                        mThemeScheduledStartTheme.setEnabled(false);
-                        mThemeScheduledEndTheme.setEnabled(false);
-                        mThemeScheduleRepeat.setEnabled(false);
-                        scheduledEndTheme = true;
-                    }
+                    onEndTimeSet(timeFormat.format(mEndDate.getTime()));
                 }
             }, mEndDate.get(Calendar.HOUR_OF_DAY),  mEndDate.get(Calendar.MINUTE), false);
             dialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
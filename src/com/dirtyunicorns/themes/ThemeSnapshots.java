@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes;
+
+import static com.dirtyunicorns.themes.utils.duUtils.threeButtonNavbarEnabled;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.dirtyunicorns.themes.utils.ThemesListItem;
+import com.dirtyunicorns.themes.utils.ThemesMetrics;
+import com.dirtyunicorns.themes.utils.ThemesTrace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ThemeSnapshots {
+
+    // Restore cards drawn once offscreen and kept as PNGs, named after the
+    // theme and a version of everything that changes the card's look
+    private static final String SNAPSHOT_DIR = "theme_snapshots";
+
+    public interface Callback {
+        void onSnapshotReady(ThemesListItem theme);
+    }
+
+    private final Context mContext;
+    private final File mDir;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Boolean> mReady = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> mPending = new ConcurrentHashMap<>();
+    private final LruCache<String, Bitmap> mBitmaps;
+    // File name of every theme of the last prepare(), looked up instead of
+    // computed on each bind
+    private volatile Map<ThemesListItem, String> mFileNames =
+            Collections.<ThemesListItem, String>emptyMap();
+
+    public ThemeSnapshots(Context context) {
+        // The activity context, cards inflate with its theme
+        mContext = context;
+        mDir = new File(context.getCacheDir(), SNAPSHOT_DIR);
+        mBitmaps = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 16)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        HandlerThread thread = new HandlerThread("ThemeSnapshots");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDir.mkdirs();
+                String[] files = mDir.list();
+                if (files != null) {
+                    for (String file : files) {
+                        mReady.put(file, true);
+                    }
+                }
+            }
+        });
+    }
+
+    public void quit() {
+        mHandler.removeCallbacksAndMessages(null);
+        mMainHandler.removeCallbacksAndMessages(null);
+        mHandler.getLooper().quitSafely();
+        mBitmaps.evictAll();
+    }
+
+    // Names the snapshot of every theme in the background, the settings
+    // and wallpaper files a card depends on are read once for the list.
+    // Themes have no snapshot until the callback ran.
+    public void prepare(List<ThemesListItem> themes, final Runnable callback) {
+        final List<ThemesListItem> list = new ArrayList<>(themes);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ThemesTrace.beginSection("snapshot prepare");
+                try {
+                    mFileNames = getFileNames(list);
+                } finally {
+                    ThemesTrace.endSection();
+                }
+                if (callback != null) {
+                    mMainHandler.post(callback);
+                }
+            }
+        });
+    }
+
+    public boolean hasSnapshot(ThemesListItem theme) {
+        String fileName = mFileNames.get(theme);
+        return fileName != null && mReady.containsKey(fileName);
+    }
+
+    // Renders the card in the background unless it's already there or queued
+    public void render(final ThemesListItem theme, final Callback callback) {
+        final String fileName = mFileNames.get(theme);
+        if (fileName == null || mReady.containsKey(fileName)
+                || mPending.put(fileName, true) != null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Might have been found on disk since it was queued
+                boolean rendered = mReady.containsKey(fileName)
+                        || renderSnapshot(theme, fileName);
+                mPending.remove(fileName);
+                if (rendered && callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSnapshotReady(theme);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    public void load(ThemesListItem theme, final ImageView imageView) {
+        final String fileName = mFileNames.get(theme);
+        imageView.setTag(fileName);
+        if (fileName == null) {
+            imageView.setImageDrawable(null);
+            return;
+        }
+        Bitmap bitmap = mBitmaps.get(fileName);
+        ThemesMetrics.recordCacheLookup("snapshot bitmaps", bitmap != null);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        imageView.setImageDrawable(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ThemesTrace.beginSection("snapshot decode");
+                final Bitmap bitmap = BitmapFactory.decodeFile(
+                        new File(mDir, fileName).getPath());
+                ThemesTrace.endSection();
+                if (bitmap == null) {
+                    mReady.remove(fileName);
+                    return;
+                }
+                mBitmaps.put(fileName, bitmap);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The view may have been rebound while decoding
+                        if (fileName.equals(imageView.getTag())) {
+                            imageView.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Drops every snapshot of the theme, for deleted or renamed themes
+    public void invalidate(String themeName) {
+        final String prefix = getPrefix(themeName);
+        for (String fileName : mReady.keySet()) {
+            if (fileName.startsWith(prefix)) {
+                mReady.remove(fileName);
+                mBitmaps.remove(fileName);
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteSnapshots(prefix, null);
+            }
+        });
+    }
+
+    private boolean renderSnapshot(ThemesListItem theme, String fileName) {
+        ThemesTrace.beginSection("snapshot render");
+        try {
+            return drawSnapshot(theme, fileName);
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    private boolean drawSnapshot(ThemesListItem theme, String fileName) {
+        ThemesAdapter adapter = new ThemesAdapter(mContext, Collections.singletonList(theme));
+        adapter.setOffscreen(true);
+        FrameLayout parent = new FrameLayout(mContext);
+        // Through the adapter's own create and bind, the bind switches on the
+        // view type only createViewHolder() sets
+        RecyclerView.ViewHolder holder = adapter.createViewHolder(parent,
+                adapter.getCardViewType(0));
+        adapter.bindViewHolder(holder, 0);
+
+        View card = holder.itemView;
+        DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+        card.measure(View.MeasureSpec.makeMeasureSpec(metrics.widthPixels,
+                View.MeasureSpec.EXACTLY), View.MeasureSpec.makeMeasureSpec(0,
+                View.MeasureSpec.UNSPECIFIED));
+        card.layout(0, 0, card.getMeasuredWidth(), card.getMeasuredHeight());
+        // Only the card content, the snapshot layout keeps the card itself
+        // so corners and elevation still come from the real CardView
+        View content = ((ViewGroup) ((ViewGroup) card).getChildAt(0)).getChildAt(0);
+        if (content.getWidth() <= 0 || content.getHeight() <= 0) {
+            return false;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(content.getWidth(), content.getHeight(),
+                Bitmap.Config.ARGB_8888);
+        content.draw(new Canvas(bitmap));
+        File file = new File(mDir, fileName);
+        try {
+            mDir.mkdirs();
+            FileOutputStream out = new FileOutputStream(file);
+            ThemesTrace.beginSection("snapshot encode");
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                ThemesTrace.endSection();
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            bitmap.recycle();
+            return false;
+        }
+        mBitmaps.put(fileName, bitmap);
+        // Older versions of the same theme are never shown again
+        deleteSnapshots(getPrefix(theme.getThemeName()), fileName);
+        mReady.put(fileName, true);
+        return true;
+    }
+
+    private void deleteSnapshots(String prefix, String keep) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && !name.equals(keep)) {
+                mReady.remove(name);
+                file.delete();
+            }
+        }
+    }
+
+    // SHA-1 of the theme name in hex, the same length for any name so file
+    // names stay short, and the separator can't be part of the hex
+    private static String getPrefix(String themeName) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder prefix = new StringBuilder();
+        for (byte b : digest.digest(themeName.getBytes(StandardCharsets.UTF_8))) {
+            prefix.append(String.format("%02x", b));
+        }
+        return prefix.append('_').toString();
+    }
+
+    private Map<ThemesListItem, String> getFileNames(List<ThemesListItem> themes) {
+        Configuration config = mContext.getResources().getConfiguration();
+        boolean threeButtonNavbar = threeButtonNavbarEnabled(mContext);
+        int width = mContext.getResources().getDisplayMetrics().widthPixels;
+        // Imported themes share wallpapers, each file is looked at once
+        Map<String, long[]> wallpapers = new HashMap<>();
+        Map<ThemesListItem, String> fileNames = new HashMap<>();
+        for (ThemesListItem theme : themes) {
+            long[] wallpaper = wallpapers.get(theme.getThemeWp());
+            if (wallpaper == null) {
+                File file = new File(theme.getThemeWp());
+                wallpaper = new long[] { file.lastModified(), file.length() };
+                wallpapers.put(theme.getThemeWp(), wallpaper);
+            }
+            int version = Arrays.hashCode(new Object[] {
+                    theme.getThemeName(), theme.getThemeDayOrNight(), theme.getThemeAccent(),
+                    theme.getThemeNightColor(), theme.getThemeFont(), theme.getThemeIconShape(),
+                    theme.getThemeSbIcons(), theme.getThemeWp(), theme.getThemeNavbarStyle(),
+                    theme.getThemeQSTileStyle(), wallpaper[0], wallpaper[1],
+                    threeButtonNavbar, config.densityDpi, width
+            });
+            fileNames.put(theme, getPrefix(theme.getThemeName())
+                    + Integer.toHexString(version) + ".png");
+        }
+        return fileNames;
+    }
+}
@@ -16,33 +16,30 @@
 
 package com.dirtyunicorns.themes;
 
-import static android.os.UserHandle.USER_SYSTEM;
 import static com.dirtyunicorns.themes.utils.duUtils.getScheduledStartThemeSummary;
 import static com.dirtyunicorns.themes.utils.duUtils.getScheduledStartThemeTime;
 import static com.dirtyunicorns.themes.utils.duUtils.getThemeSchedule;
-import static com.dirtyunicorns.themes.utils.duUtils.handleBackgrounds;
-import static com.dirtyunicorns.themes.utils.duUtils.handleOverlays;
 import static com.dirtyunicorns.themes.utils.duUtils.isLiveWallpaper;
 import static com.dirtyunicorns.themes.utils.duUtils.threeButtonNavbarEnabled;
 
 import android.app.ActionBar;
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
 import android.app.FragmentManager;
-import android.app.UiModeManager;
 import android.app.WallpaperManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.om.IOverlayManager;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.RemoteException;
-import android.os.ServiceManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -59,8 +56,22 @@ import com.android.internal.util.du.Utils;
 import com.android.internal.util.du.ThemesUtils;
 
 import com.dirtyunicorns.themes.db.ThemeDatabase;
-
+import com.dirtyunicorns.themes.utils.OverlayApplyQueue;
+import com.dirtyunicorns.themes.utils.OverlayCategory;
+import com.dirtyunicorns.themes.utils.OverlayChangeSet;
+import com.dirtyunicorns.themes.utils.OverlayState;
+import com.dirtyunicorns.themes.utils.OverlayStateModel;
+import com.dirtyunicorns.themes.utils.ThemeArchive;
+import com.dirtyunicorns.themes.utils.ThemeJournal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Themes extends PreferenceFragment implements ThemesListener {
 
@@ -68,10 +79,12 @@ public class Themes extends PreferenceFragment implements ThemesListener {
 
     private static final String PREF_BACKUP_THEMES = "backup_themes";
     private static final String PREF_RESTORE_THEMES = "restore_themes";
+    private static final String PREF_EXPORT_THEMES = "export_themes";
+    private static final String PREF_IMPORT_THEMES = "import_themes";
     private static final String PREF_WP_PREVIEW = "wp_preview";
     private static final String PREF_THEME_SCHEDULE = "theme_schedule";
     private static final String PREF_THEME_ACCENT_PICKER = "theme_accent_picker";
-    private static final String PREF_SWITCH_STYLE = "switch_style";
+    public static final String PREF_SWITCH_STYLE = "switch_style";
     public static final String PREF_THEME_ACCENT_COLOR = "theme_accent_color";
     private static final String PREF_THEME_NAVBAR_PICKER = "theme_navbar_picker";
     public static final String PREF_THEME_NAVBAR_STYLE = "theme_navbar_style";
@@ -81,8 +94,13 @@ public class Themes extends PreferenceFragment implements ThemesListener {
     public static final String PREF_FONT_PICKER = "font_picker";
     public static final String PREF_STATUSBAR_ICONS = "statusbar_icons";
     public static final String PREF_THEME_SWITCH = "theme_switch";
-    private static final String PREF_PANEL_BG = "panel_bg";
-    private static final String PREF_ROUNDED_CORNER = "rounded_ui";
+    public static final String PREF_PANEL_BG = "panel_bg";
+    public static final String PREF_ROUNDED_CORNER = "rounded_ui";
+
+    private static final int APPLY_DELAY_MS = 300;
+
+    private static final int REQUEST_EXPORT_THEMES = 1;
+    private static final int REQUEST_IMPORT_THEMES = 2;
 
     private int mBackupLimit = 10;
     private static boolean mUseSharedPrefListener;
@@ -91,10 +109,11 @@ public class Themes extends PreferenceFragment implements ThemesListener {
     private String[] mQSStyleName;
 
     private Context mContext;
-    private IOverlayManager mOverlayManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, PrefHandler> mPrefHandlers = new HashMap<>();
+    private OverlayChangeSet mPendingChanges = new OverlayChangeSet();
     private SharedPreferences mSharedPreferences;
     private ThemeDatabase mThemeDatabase;
-    private UiModeManager mUiModeManager;
 
     private ListPreference mAdaptiveIconShape;
     private ListPreference mFontPicker;
@@ -103,6 +122,8 @@ public class Themes extends PreferenceFragment implements ThemesListener {
     private ListPreference mSwitchStyle;
     private Preference mAccentPicker;
     private Preference mBackupThemes;
+    private Preference mExportThemes;
+    private Preference mImportThemes;
     private Preference mNavbarPicker;
     private Preference mQSStylePicker;
     private Preference mRestoreThemes;
@@ -130,14 +151,10 @@ public class Themes extends PreferenceFragment implements ThemesListener {
         mThemeDatabase = new ThemeDatabase(mContext);
 
         // Shared preferences
+        setupPrefHandlers();
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         mSharedPreferences.registerOnSharedPreferenceChangeListener(mSharedPrefListener);
 
-        // Theme services
-        mUiModeManager = getContext().getSystemService(UiModeManager.class);
-        mOverlayManager = IOverlayManager.Stub.asInterface(
-                ServiceManager.getService(Context.OVERLAY_SERVICE));
-
         // Accent summary
         mAccentName = getResources().getStringArray(R.array.accent_name);
 
@@ -173,7 +190,7 @@ public class Themes extends PreferenceFragment implements ThemesListener {
                 if (frag != null) {
                     manager.beginTransaction().remove(frag).commit();
                 }
-                AccentPicker accentPickerFragment = new AccentPicker();
+                AccentPicker accentPickerFragment = new AccentPicker(Themes.this);
                 accentPickerFragment.show(manager, AccentPicker.TAG_ACCENT_PICKER);
                 return true;
             }
@@ -191,7 +208,7 @@ public class Themes extends PreferenceFragment implements ThemesListener {
                     if (frag != null) {
                         manager.beginTransaction().remove(frag).commit();
                     }
-                    NavbarPicker navbarPickerFragment = new NavbarPicker();
+                    NavbarPicker navbarPickerFragment = new NavbarPicker(Themes.this);
                     navbarPickerFragment.show(manager, NavbarPicker.TAG_NAVBAR_PICKER);
                     return true;
                 }
@@ -211,7 +228,7 @@ public class Themes extends PreferenceFragment implements ThemesListener {
                 if (frag != null) {
                     manager.beginTransaction().remove(frag).commit();
                 }
-                QSStylePicker qsStylePickerFragment = new QSStylePicker();
+                QSStylePicker qsStylePickerFragment = new QSStylePicker(Themes.this);
                 qsStylePickerFragment.show(manager, QSStylePicker.TAG_QSSTYLE_PICKER);
                 return true;
             }
@@ -277,115 +294,53 @@ public class Themes extends PreferenceFragment implements ThemesListener {
             }
         });
 
-        // Accent
-        String accentName = getOverlayName(ThemesUtils.ACCENTS);
-        if (accentName != null) {
-            mSharedPreferences.edit().putString("theme_accent_color", accentName).apply();
-        }
-
-        // Navbar
-        String navbarName = getOverlayName(ThemesUtils.NAVBAR_STYLES);
-        if (navbarName != null) {
-            mSharedPreferences.edit().putString("theme_navbar_style", navbarName).apply();
-        }
+        // Themes export
+        mExportThemes = (Preference) findPreference(PREF_EXPORT_THEMES);
+        assert mExportThemes != null;
+        mExportThemes.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("application/zip");
+                intent.putExtra(Intent.EXTRA_TITLE, "DU-Themes-"
+                        + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".zip");
+                startActivityForResult(intent, REQUEST_EXPORT_THEMES);
+                return true;
+            }
+        });
 
-        // QSStyles
-        String qsStyleName = getOverlayName(ThemesUtils.QS_TILE_THEMES);
-        if (qsStyleName != null) {
-            mSharedPreferences.edit().putString("theme_qstile_style", qsStyleName).apply();
-        }
-        // Themes
-        mThemeSwitch = (ListPreference) findPreference(PREF_THEME_SWITCH);
-        if (Utils.isThemeEnabled("com.android.theme.transparentclear.system")) {
-            mThemeSwitch.setValue("9");
-        } else if (Utils.isThemeEnabled("com.android.theme.materialocean.system")) {
-            mThemeSwitch.setValue("8");
-        } else if (Utils.isThemeEnabled("com.android.theme.darkgrey.system")) {
-            mThemeSwitch.setValue("7");
-        } else if (Utils.isThemeEnabled("com.android.theme.bakedgreen.system")) {
-            mThemeSwitch.setValue("6");
-        } else if (Utils.isThemeEnabled("com.android.theme.chocox.system")) {
-            mThemeSwitch.setValue("5");
-        } else if (Utils.isThemeEnabled("com.android.theme.solarizeddark.system")) {
-            mThemeSwitch.setValue("4");
-        } else if (Utils.isThemeEnabled("com.android.theme.pitchblack.system")) {
-            mThemeSwitch.setValue("3");
-        } else if (mUiModeManager != null) {
-            if (mUiModeManager.getNightMode() == UiModeManager.MODE_NIGHT_YES) {
-                mThemeSwitch.setValue("2");
-            } else {
-                mThemeSwitch.setValue("1");
+        // Themes import
+        mImportThemes = (Preference) findPreference(PREF_IMPORT_THEMES);
+        assert mImportThemes != null;
+        mImportThemes.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("application/zip");
+                startActivityForResult(intent, REQUEST_IMPORT_THEMES);
+                return true;
             }
-        }
-        mThemeSwitch.setSummary(mThemeSwitch.getEntry());
+        });
 
-        // Rounded Ui
+        // Overlay options, shown with the values from the last visit until
+        // the live state has been read in the background
+        mThemeSwitch = (ListPreference) findPreference(PREF_THEME_SWITCH);
         mRoundedUi = (ListPreference) findPreference(PREF_ROUNDED_CORNER);
-        int roundedValue = getOverlayPosition(ThemesUtils.UI_RADIUS);
-        if (roundedValue != -1) {
-            mRoundedUi.setValue(String.valueOf(roundedValue + 2));
-        } else {
-            mRoundedUi.setValue("1");
-        }
-        mRoundedUi.setSummary(mRoundedUi.getEntry());
-
-        // Font picker
         mFontPicker = (ListPreference) findPreference(PREF_FONT_PICKER);
-        int fontPickerValue = getOverlayPosition(ThemesUtils.FONTS);
-        if (fontPickerValue != -1) {
-            mFontPicker.setValue(String.valueOf(fontPickerValue + 2));
-        } else {
-            mFontPicker.setValue("1");
-        }
-        mFontPicker.setSummary(mFontPicker.getEntry());
-
-        // QS panel Backgroud
         mPanelBg = (ListPreference) findPreference(PREF_PANEL_BG);
-        int mPanelValue = getOverlayPosition(ThemesUtils.PANEL_BG_STYLE);
-        if (mPanelValue != -1) {
-            mPanelBg.setValue(String.valueOf(mPanelValue + 2));
-        } else {
-            mPanelBg.setValue("1");
-        }
-        mPanelBg.setSummary(mPanelBg.getEntry());
-
-        // Adaptive icon shape
         mAdaptiveIconShape = (ListPreference) findPreference(PREF_ADAPTIVE_ICON_SHAPE);
-        int iconShapeValue = getOverlayPosition(ThemesUtils.ADAPTIVE_ICON_SHAPE);
-        if (iconShapeValue != -1) {
-            mAdaptiveIconShape.setValue(String.valueOf(iconShapeValue + 2));
-        } else {
-            mAdaptiveIconShape.setValue("1");
-        }
-        mAdaptiveIconShape.setSummary(mAdaptiveIconShape.getEntry());
-
-        // Statusbar icons
         mStatusbarIcons = (ListPreference) findPreference(PREF_STATUSBAR_ICONS);
-        int sbIconsValue = getOverlayPosition(ThemesUtils.STATUSBAR_ICONS);
-        if (sbIconsValue != -1) {
-            mStatusbarIcons.setValue(String.valueOf(sbIconsValue + 2));
-        } else {
-            mStatusbarIcons.setValue("1");
-        }
-        mStatusbarIcons.setSummary(mStatusbarIcons.getEntry());
-
-        // Switch Style
         mSwitchStyle = (ListPreference) findPreference(PREF_SWITCH_STYLE);
-        int switchStyleValue = getOverlayPosition(ThemesUtils.SWITCH_STYLE);
-        if (switchStyleValue != -1) {
-            mSwitchStyle.setValue(String.valueOf(switchStyleValue + 2));
-        } else {
-            mSwitchStyle.setValue("1");
-        }
-        mSwitchStyle.setSummary(mSwitchStyle.getEntry());
+        refreshSummaries();
+        OverlayStateModel.getInstance(mContext).addListener(mOverlayStateListener);
 
         setWallpaperPreview();
-        updateAccentSummary();
-        updateNavbarSummary();
-        updateQSStyleSummary();
         updateThemeScheduleSummary();
         updateBackupPref();
         updateRestorePref();
+        updateExportPref();
     }
 
     private void setWallpaperPreview() {
@@ -396,7 +351,7 @@ public class Themes extends PreferenceFragment implements ThemesListener {
 
     private void updateBackupPref() {
         mBackupThemes.setEnabled(getThemeCount() < mBackupLimit ? true : false);
-        if (getThemeCount() == mBackupLimit) {
+        if (getThemeCount() >= mBackupLimit) {
             mBackupThemes.setSummary(R.string.theme_backup_reach_limit_summary);
         } else {
             mBackupThemes.setSummary(R.string.theme_backup_summary);
@@ -412,329 +367,115 @@ public class Themes extends PreferenceFragment implements ThemesListener {
         }
     }
 
+    private void updateExportPref() {
+        mExportThemes.setEnabled(getThemeCount() > 0 ? true : false);
+        if (getThemeCount() == 0) {
+            mExportThemes.setSummary(R.string.theme_export_no_backup_summary);
+        } else {
+            mExportThemes.setSummary(R.string.theme_export_summary);
+        }
+    }
+
     private int getThemeCount() {
         int count = mThemeDatabase.getThemeDbUtilsCount();
         return count;
     }
 
-    private int getOverlayPosition(String[] overlays) {
-        int position = -1;
+    private int getOverlayPosition(String[] overlays, String overlay) {
         for (int i = 0; i < overlays.length; i++) {
-            String overlay = overlays[i];
-            if (Utils.isThemeEnabled(overlay)) {
-                position = i;
+            if (overlays[i].equals(overlay)) {
+                return i;
             }
         }
-        return position;
+        return -1;
     }
 
-    private String getOverlayName(String[] overlays) {
-        String overlayName = null;
-        for (int i = 0; i < overlays.length; i++) {
-            String overlay = overlays[i];
-            if (Utils.isThemeEnabled(overlay)) {
-                overlayName = overlay;
-            }
-        }
-        return overlayName;
+    private interface PrefHandler {
+        void onPrefChanged(SharedPreferences sharedPreferences, String key);
     }
 
-    public OnSharedPreferenceChangeListener mSharedPrefListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
-        @Override
-        public void onSharedPreferenceChanged(final SharedPreferences sharedPreferences, String key) {
-            class FontPicker extends AsyncTask<Void, Void, Void> {
-
-                protected Void doInBackground(Void... param) {
-                    return null;
-                }
-
-                protected void onPostExecute(Void param) {
-                }
-
-                @Override
-                protected void onPreExecute() {
-                    super.onPreExecute();
-                    String fontType = sharedPreferences.getString(PREF_FONT_PICKER, "1");
-                    String overlayName = getOverlayName(ThemesUtils.FONTS);
-                    int fontTypeValue = Integer.parseInt(fontType);
-                    if (overlayName != null) {
-                        handleOverlays(overlayName, false, mOverlayManager);
-                    }
-                    if (fontTypeValue > 1) {
-                        handleOverlays(ThemesUtils.FONTS[fontTypeValue - 2],
-                            true, mOverlayManager);
-                    }
-                    mFontPicker.setSummary(mFontPicker.getEntry());
-                }
-            }
-
-            if (key.equals(PREF_THEME_ACCENT_COLOR)) {
-                String accentColor = sharedPreferences.getString(PREF_THEME_ACCENT_COLOR, "default");
-                String overlayName = getOverlayName(ThemesUtils.ACCENTS);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (accentColor != "default") {
-                    handleOverlays(accentColor, true, mOverlayManager);
-                }
-                updateAccentSummary();
-            }
-
-            if (key.equals(PREF_THEME_NAVBAR_STYLE)) {
-                String navbarStyle = sharedPreferences.getString(PREF_THEME_NAVBAR_STYLE, "default");
-                String overlayName = getOverlayName(ThemesUtils.NAVBAR_STYLES);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (navbarStyle != "default") {
-                    handleOverlays(navbarStyle, true, mOverlayManager);
-                }
-                updateNavbarSummary();
-            }
-
-            if (key.equals(PREF_THEME_QSTILE_STYLE)) {
-                String qsStyle = sharedPreferences.getString(PREF_THEME_QSTILE_STYLE, "com.android.systemui.qstile.default");
-                String overlayName = getOverlayName(ThemesUtils.QS_TILE_THEMES);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (qsStyle != "default") {
-                    handleOverlays(qsStyle, true, mOverlayManager);
-                }
-                updateQSStyleSummary();
-            }
-
-            if (key.equals(PREF_FONT_PICKER)) {
-                new FontPicker().execute();
+    private void setupPrefHandlers() {
+        final PrefHandler overlayHandler = new PrefHandler() {
+            @Override
+            public void onPrefChanged(SharedPreferences sharedPreferences, String key) {
+                OverlayCategory category = OverlayCategory.fromKey(key);
+                mPendingChanges.setCategory(category,
+                        sharedPreferences.getString(key, category.getDefaultValue()));
             }
+        };
+        for (OverlayCategory category : OverlayCategory.values()) {
+            mPrefHandlers.put(category.getKey(), overlayHandler);
+        }
 
-            if (key.equals(PREF_ADAPTIVE_ICON_SHAPE)) {
-                String adapativeIconShape = sharedPreferences.getString(PREF_ADAPTIVE_ICON_SHAPE, "1");
-                String overlayName = getOverlayName(ThemesUtils.ADAPTIVE_ICON_SHAPE);
-                int adapativeIconShapeValue = Integer.parseInt(adapativeIconShape);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (adapativeIconShapeValue > 1) {
-                    handleOverlays(ThemesUtils.ADAPTIVE_ICON_SHAPE[adapativeIconShapeValue - 2],
-                        true, mOverlayManager);
+        mPrefHandlers.put(PREF_PANEL_BG, new PrefHandler() {
+            @Override
+            public void onPrefChanged(SharedPreferences sharedPreferences, String key) {
+                if (!"1".equals(sharedPreferences.getString(PREF_PANEL_BG, "1"))) {
+                    Utils.showSystemUiRestartDialog(getContext());
                 }
-                mAdaptiveIconShape.setSummary(mAdaptiveIconShape.getEntry());
+                overlayHandler.onPrefChanged(sharedPreferences, key);
             }
+        });
 
-            if (key.equals(PREF_STATUSBAR_ICONS)) {
-                String statusbarIcons = sharedPreferences.getString(PREF_STATUSBAR_ICONS, "1");
-                String overlayName = getOverlayName(ThemesUtils.STATUSBAR_ICONS);
-                int statusbarIconsValue = Integer.parseInt(statusbarIcons);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (statusbarIconsValue > 1) {
-                    handleOverlays(ThemesUtils.STATUSBAR_ICONS[statusbarIconsValue - 2],
-                        true, mOverlayManager);
-                }
-                mStatusbarIcons.setSummary(mStatusbarIcons.getEntry());
+        mPrefHandlers.put(PREF_THEME_SWITCH, new PrefHandler() {
+            @Override
+            public void onPrefChanged(SharedPreferences sharedPreferences, String key) {
+                mPendingChanges.setThemeSwitch(sharedPreferences.getString(PREF_THEME_SWITCH, "1"));
             }
+        });
+    }
 
-            if (key.equals(PREF_SWITCH_STYLE)) {
-                String switchStyle = sharedPreferences.getString(PREF_SWITCH_STYLE, "1");
-                String overlayName = getOverlayName(ThemesUtils.SWITCH_STYLE);
-                int switchStyleValue = Integer.parseInt(switchStyle);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (switchStyleValue > 1) {
-                    handleOverlays(ThemesUtils.SWITCH_STYLE[switchStyleValue - 2],
-                            true, mOverlayManager);
-                }
-                mSwitchStyle.setSummary(mSwitchStyle.getEntry());
-            }
+    private final Runnable mApplyPendingChanges = new Runnable() {
+        @Override
+        public void run() {
+            OverlayChangeSet changes = mPendingChanges;
+            mPendingChanges = new OverlayChangeSet();
+            OverlayApplyQueue.getInstance(mContext).submit(changes, new ThemesApplyCallback());
+        }
+    };
 
-            if (key.equals(PREF_PANEL_BG)) {
-                String panelBg = sharedPreferences.getString(PREF_PANEL_BG, "1");
-                int panelBgValue = Integer.parseInt(panelBg);
-                  String overlayName = getOverlayName(ThemesUtils.PANEL_BG_STYLE);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (panelBgValue > 1) {
-                        Utils.showSystemUiRestartDialog(getContext());
-                    handleOverlays(ThemesUtils.PANEL_BG_STYLE[panelBgValue -2],
-                            true, mOverlayManager);
-                }
-                mPanelBg.setSummary(mPanelBg.getEntry());
+    public OnSharedPreferenceChangeListener mSharedPrefListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            PrefHandler handler = mPrefHandlers.get(key);
+            if (handler == null) {
+                return;
             }
-
-            if (key.equals(PREF_ROUNDED_CORNER)) {
-            String roundedStyle = sharedPreferences.getString(PREF_ROUNDED_CORNER, "1");
-            int roundedValue = Integer.parseInt(roundedStyle);
-            String overlayName = getOverlayName(ThemesUtils.UI_RADIUS);
-                if (overlayName != null) {
-                    handleOverlays(overlayName, false, mOverlayManager);
-                }
-                if (roundedValue > 1) {
-                    handleOverlays(ThemesUtils.UI_RADIUS[roundedValue -2],
-                            true, mOverlayManager);
-                }
-                mRoundedUi.setSummary(mRoundedUi.getEntry());
+            // Change sets apply their overlays themselves
+            if (OverlayChangeSet.isOwnWrite(key)) {
+                return;
             }
-
-            if (key.equals(PREF_THEME_SWITCH)) {
-                String themeSwitch = sharedPreferences.getString(PREF_THEME_SWITCH, "1");
-                switch (themeSwitch) {
-                    case "1":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_NO,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "2":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "3":
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "4":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "5":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "6":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "7":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "8":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                    case "9":
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.PITCH_BLACK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.SOLARIZED_DARK, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.CHOCO_X, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.BAKED_GREEN, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.DARK_GREY, mOverlayManager);
-                        handleBackgrounds(false, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.MATERIAL_OCEAN, mOverlayManager);
-                        handleBackgrounds(true, mContext, UiModeManager.MODE_NIGHT_YES,
-                                ThemesUtils.TRANSPARENT_CLEAR, mOverlayManager);
-                        break;
-                }
-                mThemeSwitch.setSummary(mThemeSwitch.getEntry());
+            handler.onPrefChanged(sharedPreferences, key);
+            Preference preference = findPreference(key);
+            if (preference instanceof ListPreference) {
+                preference.setSummary(((ListPreference) preference).getEntry());
             }
+            // Collect further changes before handing them to the apply queue,
+            // only the latest value of each category gets applied
+            mHandler.removeCallbacks(mApplyPendingChanges);
+            mHandler.postDelayed(mApplyPendingChanges, APPLY_DELAY_MS);
         }
     };
 
     public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
     }
 
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        switch (requestCode) {
+            case REQUEST_EXPORT_THEMES:
+                new ThemeArchiveTask(true, data.getData()).execute();
+                break;
+            case REQUEST_IMPORT_THEMES:
+                new ThemeArchiveTask(false, data.getData()).execute();
+                break;
+        }
+    }
+
     public static void setSharedPrefListener(boolean listener) {
         mUseSharedPrefListener = listener;
     }
@@ -743,6 +484,12 @@ public class Themes extends PreferenceFragment implements ThemesListener {
     public void onCloseBackupDialog(DialogFragment dialog) {
         updateBackupPref();
         updateRestorePref();
+        updateExportPref();
+    }
+
+    @Override
+    public void onOverlayPicked(OverlayChangeSet changeSet) {
+        OverlayApplyQueue.getInstance(mContext).submit(changeSet, new ThemesApplyCallback());
     }
 
     @Override
@@ -752,9 +499,21 @@ public class Themes extends PreferenceFragment implements ThemesListener {
         setWallpaperPreview();
         updateBackupPref();
         updateRestorePref();
+        updateExportPref();
         updateThemeScheduleSummary();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        OverlayStateModel.getInstance(mContext).removeListener(mOverlayStateListener);
+        // Don't lose changes still waiting for the coalescing window
+        if (!mPendingChanges.isEmpty()) {
+            mHandler.removeCallbacks(mApplyPendingChanges);
+            mApplyPendingChanges.run();
+        }
+    }
+
     @Override
     public void onPause() {
         super.onPause();
@@ -773,6 +532,42 @@ public class Themes extends PreferenceFragment implements ThemesListener {
         updateThemeScheduleSummary();
     }
 
+    // Only touches the preferences whose stored value moved on
+    private void refreshSummaries() {
+        ListPreference[] listPrefs = { mThemeSwitch, mFontPicker, mAdaptiveIconShape,
+                mStatusbarIcons, mSwitchStyle, mPanelBg, mRoundedUi };
+        for (ListPreference listPref : listPrefs) {
+            String value = mSharedPreferences.getString(listPref.getKey(), null);
+            if (value == null) {
+                // Cleared by a reset, show the default without storing it again
+                OverlayCategory category = OverlayCategory.fromKey(listPref.getKey());
+                listPref.setPersistent(false);
+                listPref.setValue(category != null ? category.getDefaultValue() : "1");
+                listPref.setPersistent(true);
+            } else if (!value.equals(listPref.getValue())) {
+                listPref.setValue(value);
+            }
+            listPref.setSummary(listPref.getEntry());
+        }
+        updateAccentSummary();
+        updateNavbarSummary();
+        updateQSStyleSummary();
+    }
+
+    // Pushed whenever overlays change, here or anywhere else
+    private final OverlayStateModel.Listener mOverlayStateListener =
+            new OverlayStateModel.Listener() {
+        @Override
+        public void onOverlayStateChanged(OverlayState state, int version) {
+            // Store what is live so the next visit starts from it
+            OverlayChangeSet.fromState(mContext, state).writePreferences(mContext);
+            if (isAdded()) {
+                mWpPreview.setOverlayState(state);
+                refreshSummaries();
+            }
+        }
+    };
+
     private void updateThemeScheduleSummary() {
         if (mThemeSchedule != null) {
             if (getThemeSchedule(mSharedPreferences).equals("1")) {
@@ -788,7 +583,8 @@ public class Themes extends PreferenceFragment implements ThemesListener {
 
     private void updateAccentSummary() {
         if (mAccentPicker != null) {
-            int value = getOverlayPosition(ThemesUtils.ACCENTS);
+            int value = getOverlayPosition(ThemesUtils.ACCENTS,
+                    mSharedPreferences.getString(PREF_THEME_ACCENT_COLOR, "default"));
             if (value != -1) {
                 mAccentPicker.setSummary(mAccentName[value]);
             } else {
@@ -799,7 +595,8 @@ public class Themes extends PreferenceFragment implements ThemesListener {
 
     private void updateNavbarSummary() {
         if (mNavbarPicker != null) {
-            int value = getOverlayPosition(ThemesUtils.NAVBAR_STYLES);
+            int value = getOverlayPosition(ThemesUtils.NAVBAR_STYLES,
+                    mSharedPreferences.getString(PREF_THEME_NAVBAR_STYLE, "default"));
             if (value != -1) {
                 mNavbarPicker.setSummary(mNavbarName[value]);
             } else {
@@ -810,14 +607,15 @@ public class Themes extends PreferenceFragment implements ThemesListener {
 
     private void updateQSStyleSummary() {
         if (mQSStylePicker != null) {
-            int value = getOverlayPosition(ThemesUtils.QS_TILE_THEMES);
+            int value = getOverlayPosition(ThemesUtils.QS_TILE_THEMES,
+                    mSharedPreferences.getString(PREF_THEME_QSTILE_STYLE, "default"));
             if (value != -1) {
                 mQSStylePicker.setSummary(mQSStyleName[value]);
             } else {
                 mQSStylePicker.setSummary(R.string.theme_accent_picker_default);
             }
             // Update preview
-            mWpPreview.setResources();
+            mWpPreview.setTileStyle(mSharedPreferences.getString(PREF_THEME_QSTILE_STYLE, null));
         }
     }
 
@@ -827,6 +625,12 @@ public class Themes extends PreferenceFragment implements ThemesListener {
         super.onCreateOptionsMenu(menu, inflater);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        menu.findItem(R.id.themes_undo).setEnabled(ThemeJournal.hasEntry(mContext));
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -836,6 +640,9 @@ public class Themes extends PreferenceFragment implements ThemesListener {
             case R.id.themes_reset:
                 resetThemes();
                 return true;
+            case R.id.themes_undo:
+                undoThemes();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -850,7 +657,7 @@ public class Themes extends PreferenceFragment implements ThemesListener {
                         new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                new resetThemes().execute();
+                                applyResetThemes();
                             }
                         })
                 .setNegativeButton(getContext().getString(android.R.string.cancel),
@@ -862,38 +669,112 @@ public class Themes extends PreferenceFragment implements ThemesListener {
                         }).show();
     }
 
-    class resetThemes extends AsyncTask<Void, Void, Void> {
-
-        protected Void doInBackground(Void... param) {
-            mSharedPreferences.edit()
-            // Accents
-            .remove(PREF_THEME_ACCENT_COLOR)
-            // NavBar
-            .remove(PREF_THEME_NAVBAR_STYLE)
-            // QSStyle
-            .remove(PREF_THEME_QSTILE_STYLE)
-            // Fonts
-            .remove(PREF_FONT_PICKER)
-            // Adapative icons
-            .remove(PREF_ADAPTIVE_ICON_SHAPE)
-            // Statusbar icons
-            .remove(PREF_STATUSBAR_ICONS)
-            // Themes
-            .remove(PREF_THEME_SWITCH)
-            // Switch
-	    .remove(PREF_SWITCH_STYLE)
-            .apply();
-
-            return null;
+    // Everything back to stock in one change set, the preferences are
+    // cleared by the apply queue so the listener doesn't react to them
+    private void applyResetThemes() {
+        OverlayChangeSet changeSet = new OverlayChangeSet()
+                .setCategory(OverlayCategory.ACCENT, OverlayCategory.ACCENT.getDefaultValue())
+                .setCategory(OverlayCategory.NAVBAR, OverlayCategory.NAVBAR.getDefaultValue())
+                .setCategory(OverlayCategory.QS_TILE_STYLE,
+                        OverlayCategory.QS_TILE_STYLE.getDefaultValue())
+                .setCategory(OverlayCategory.FONT, OverlayCategory.FONT.getDefaultValue())
+                .setCategory(OverlayCategory.ADAPTIVE_ICON_SHAPE,
+                        OverlayCategory.ADAPTIVE_ICON_SHAPE.getDefaultValue())
+                .setCategory(OverlayCategory.STATUSBAR_ICONS,
+                        OverlayCategory.STATUSBAR_ICONS.getDefaultValue())
+                .setCategory(OverlayCategory.SWITCH_STYLE,
+                        OverlayCategory.SWITCH_STYLE.getDefaultValue())
+                .setThemeSwitch("1")
+                .setClearPreferences(true);
+        OverlayApplyQueue.getInstance(mContext).submit(changeSet, new ThemesApplyCallback() {
+            @Override
+            public void onComplete(boolean success, int changes) {
+                super.onComplete(success, changes);
+                if (success) {
+                    Toast.makeText(mContext, mContext.getString(R.string.theme_reset_toast),
+                            Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
+    private void undoThemes() {
+        OverlayApplyQueue.getInstance(mContext).revert(new ThemesApplyCallback() {
+            @Override
+            public void onComplete(boolean success, int changes) {
+                super.onComplete(success, changes);
+                if (success && isAdded()) {
+                    Toast.makeText(mContext, R.string.theme_undo_toast, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    // Refreshes the summaries once the overlays are in place
+    class ThemesApplyCallback implements OverlayApplyQueue.Callback {
+
+        @Override
+        public void onProgress(int applied, int total) {
         }
 
-        protected void onPostExecute(Void param) {
-            Toast.makeText(mContext, mContext.getString(R.string.theme_reset_toast), Toast.LENGTH_LONG).show();
+        @Override
+        public void onUserComplete(int userId, boolean success) {
+            if (!success && isAdded()) {
+                Toast.makeText(mContext, mContext.getString(R.string.theme_apply_user_failed_toast,
+                        userId), Toast.LENGTH_SHORT).show();
+            }
         }
 
         @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
+        public void onComplete(boolean success, int changes) {
+            if (isAdded()) {
+                refreshSummaries();
+                getActivity().invalidateOptionsMenu();
+            }
+        }
+    }
+
+    class ThemeArchiveTask extends AsyncTask<Void, Void, Integer> {
+
+        private final boolean mExport;
+        private final Uri mUri;
+
+        ThemeArchiveTask(boolean export, Uri uri) {
+            mExport = export;
+            mUri = uri;
+        }
+
+        protected Integer doInBackground(Void... param) {
+            try {
+                if (mExport) {
+                    OutputStream out = mContext.getContentResolver().openOutputStream(mUri);
+                    if (out == null) {
+                        throw new IOException("Unable to open " + mUri);
+                    }
+                    return ThemeArchive.exportThemes(mContext, out);
+                } else {
+                    InputStream in = mContext.getContentResolver().openInputStream(mUri);
+                    if (in == null) {
+                        throw new IOException("Unable to open " + mUri);
+                    }
+                    return ThemeArchive.importThemes(mContext, in, mBackupLimit);
+                }
+            } catch (IOException | SecurityException e) {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+
+        protected void onPostExecute(Integer count) {
+            if (count < 0) {
+                Toast.makeText(mContext, R.string.theme_export_import_failed, Toast.LENGTH_LONG).show();
+                return;
+            }
+            Toast.makeText(mContext, mContext.getString(mExport ? R.string.theme_export_toast
+                    : R.string.theme_import_toast, count), Toast.LENGTH_LONG).show();
+            updateBackupPref();
+            updateRestorePref();
+            updateExportPref();
         }
     }
 }
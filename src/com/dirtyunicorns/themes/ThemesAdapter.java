@@ -33,6 +33,7 @@ import android.graphics.PorterDuff.Mode;
 import android.graphics.Typeface;
 import android.os.AsyncTask;
 import android.util.PathParser;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -45,12 +46,22 @@ import androidx.core.graphics.ColorUtils;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.dirtyunicorns.themes.utils.ThemesListItem;
+import com.dirtyunicorns.themes.utils.ThemesMetrics;
+import com.dirtyunicorns.themes.utils.ThemesTrace;
 
-import java.io.File;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
+    private static final int VIEW_TYPE_SNAPSHOT = 14;
+
+    // Font assets are parsed once, every card showing a font shares it
+    private static final SparseArray<Typeface> sTypefaces = new SparseArray<>();
+    // Icon shape paths parsed once, every card draws its shape a few times
+    private static final Map<String, Path> sShapePaths = new HashMap<>();
+
     private Context mContext;
     private boolean mIsNightMode;
     private int mThemeNightColor;
@@ -59,6 +70,8 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
     private Resources mResources;
     private List<ThemesListItem> mThemesList;
     private RecyclerView.ViewHolder mViewHolder;
+    private ThemeSnapshots mSnapshots;
+    private boolean mOffscreen;
 
     public ThemesAdapter(Context context, List<ThemesListItem> themesList) {
         mContext = context;
@@ -66,6 +79,29 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         mThemesList = themesList;
     }
 
+    // Cards with a snapshot are bound as a single image, the others are
+    // built from views once and snapshotted in the background
+    public void setSnapshots(ThemeSnapshots snapshots) {
+        mSnapshots = snapshots;
+    }
+
+    // Binds everything synchronously, for drawing cards off the main thread
+    void setOffscreen(boolean offscreen) {
+        mOffscreen = offscreen;
+    }
+
+    class ViewHolderSnapshot extends RecyclerView.ViewHolder {
+
+        ImageView mSnapshot;
+        TextView mThemeName;
+
+        ViewHolderSnapshot(View view) {
+            super(view);
+            mSnapshot = view.findViewById(R.id.theme_snapshot);
+            mThemeName = view.findViewById(R.id.theme_snapshot_name);
+        }
+    }
+
     class ViewHolderMain extends RecyclerView.ViewHolder {
 
         ImageView mWpBgMain;
@@ -536,49 +572,25 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
     @Override
     public int getItemViewType(int position) {
-        ThemesListItem themes = mThemesList.get(position);
-        int themeViewType = 0;
-        String themeQSTileStyle = themes.getThemeQSTileStyle();
-        if (!themeQSTileStyle.equals("com.android.systemui.qstile.default")) {
-            switch (themeQSTileStyle) {
-                case "com.android.systemui.qstile.circletrim":
-                    themeViewType = 5;
-                    break;
-                case "com.android.systemui.qstile.dualtonecircletrim":
-                    themeViewType = 6;
-                    break;
-                case "com.android.systemui.qstile.squircletrim":
-                    themeViewType = 7;
-                    break;
-                case "com.android.systemui.qstile.attemptmountain":
-                    themeViewType = 8;
-                    break;
-                case "com.android.systemui.qstile.cosmos":
-                    themeViewType = 9;
-                    break;
-                case "com.android.systemui.qstile.dottedcircle":
-                    themeViewType = 10;
-                    break;
-                case "com.android.systemui.qstile.ninja":
-                    themeViewType = 11;
-                    break;
-                case "com.android.systemui.qstile.pokesign":
-                    themeViewType = 12;
-                    break;
-                case "com.android.systemui.qstile.wavey":
-                    themeViewType = 13;
-                    break;
-            }
-        } else {
-            themeViewType = Integer.parseInt(themes.getThemeSbIcons());
+        if (mSnapshots != null && mSnapshots.hasSnapshot(mThemesList.get(position))) {
+            return VIEW_TYPE_SNAPSHOT;
         }
-        return themeViewType;
+        return getCardViewType(position);
+    }
+
+    int getCardViewType(int position) {
+        ThemesListItem themes = mThemesList.get(position);
+        return CardViewTypes.get(themes.getThemeQSTileStyle(), themes.getThemeSbIcons());
     }
 
     @NonNull
     @Override
     public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         switch (viewType) {
+            case VIEW_TYPE_SNAPSHOT:
+                mViewHolder = new ViewHolderSnapshot(LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.restore_themes_snapshot, parent, false));
+                break;
             case 1:
                 mViewHolder = new ViewHolderMain(LayoutInflater.from(parent.getContext())
                     .inflate(R.layout.restore_themes_main, parent, false));
@@ -637,7 +649,27 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
     @Override
     public void onBindViewHolder(final RecyclerView.ViewHolder holder, final int position) {
+        ThemesTrace.beginSection("ThemesAdapter.onBindViewHolder");
+        try {
+            bindCard(holder, position);
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    private void bindCard(final RecyclerView.ViewHolder holder, final int position) {
         ThemesListItem themes = mThemesList.get(position);
+        if (mSnapshots != null) {
+            mSnapshots.render(themes, new ThemeSnapshots.Callback() {
+                @Override
+                public void onSnapshotReady(ThemesListItem theme) {
+                    int index = mThemesList.indexOf(theme);
+                    if (index >= 0) {
+                        notifyItemChanged(index);
+                    }
+                }
+            });
+        }
         mIsNightMode = Boolean.parseBoolean(themes.getThemeDayOrNight());
         mThemeNightColor = Color.parseColor(themes.getThemeNightColor());
         mThemeFont = Integer.parseInt(themes.getThemeFont());
@@ -648,6 +680,13 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         String themeQSTileStyle = themes.getThemeQSTileStyle();
         String pathShape = themes.getThemeIconShape();
         String themeName = themes.getThemeName();
+        if (holder instanceof ViewHolderSnapshot) {
+            ViewHolderSnapshot viewHolderSnapshot = (ViewHolderSnapshot) holder;
+            mSnapshots.load(themes, viewHolderSnapshot.mSnapshot);
+            viewHolderSnapshot.mThemeName.setText(themeName);
+            viewHolderSnapshot.mThemeName.setTypeface(getTypeface());
+            return;
+        }
         if (!mIsNightMode) {
             qsTileBgInactive = mResources.getColor(R.color.qs_tile_background_inactive_day);
             qsTileIconInactive = mResources.getColor(R.color.qs_tile_icon_inactive_day);
@@ -660,7 +699,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         switch (holder.getItemViewType()) {
             case 1:
                 ViewHolderMain viewHolderMain = (ViewHolderMain) holder;
-                new ThemeWallpaper(viewHolderMain.mWpBgMain).execute();
+                loadWallpaper(viewHolderMain.mWpBgMain);
                 viewHolderMain.mLlBgMain.setBackground(getThemeDayNightBg());
                 viewHolderMain.mQsAccentMainWifi.setImageDrawable(
                     getShapeDrawable(pathShape, bgQsAccent));
@@ -693,7 +732,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 2:
                 ViewHolderFilled viewHolderFilled = (ViewHolderFilled) holder;
-                new ThemeWallpaper(viewHolderFilled.mWpBgFilled).execute();
+                loadWallpaper(viewHolderFilled.mWpBgFilled);
                 viewHolderFilled.mLlBgMainFilled.setBackground(getThemeDayNightBg());
                 viewHolderFilled.mQsAccentMainFilledWifi.setImageDrawable(
                     getShapeDrawable(pathShape, bgQsAccent));
@@ -726,7 +765,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 3:
                 ViewHolderRounded viewHolderRounded = (ViewHolderRounded) holder;
-                new ThemeWallpaper(viewHolderRounded.mWpBgRounded).execute();
+                loadWallpaper(viewHolderRounded.mWpBgRounded);
                 viewHolderRounded.mLlBgMainRounded.setBackground(getThemeDayNightBg());
                 viewHolderRounded.mQsAccentMainRoundedWifi.setImageDrawable(
                     getShapeDrawable(pathShape, bgQsAccent));
@@ -759,7 +798,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 4:
                 ViewHolderCircular viewHolderCircular = (ViewHolderCircular) holder;
-                new ThemeWallpaper(viewHolderCircular.mWpBgCircular).execute();
+                loadWallpaper(viewHolderCircular.mWpBgCircular);
                 viewHolderCircular.mLlBgMainCircular.setBackground(getThemeDayNightBg());
                 viewHolderCircular.mQsAccentMainCircularWifi.setImageDrawable(
                     getShapeDrawable(pathShape, bgQsAccent));
@@ -792,7 +831,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 5:
                 ViewHolderCircletrim viewHolder1 = (ViewHolderCircletrim) holder;
-                new ThemeWallpaper(viewHolder1.mWpBgCircletrim).execute();
+                loadWallpaper(viewHolder1.mWpBgCircletrim);
                 viewHolder1.mLlBgMainCircletrim.setBackground(getThemeDayNightBg());
                 viewHolder1.mQsAccentMainCircletrimWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder1.mQSTileMainCircletrimWifiActive.setColorFilter(qsTileIconActive);
@@ -822,7 +861,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 6:
                 ViewHolderDualtonecircletrim viewHolder2 = (ViewHolderDualtonecircletrim) holder;
-                new ThemeWallpaper(viewHolder2.mWpBgDualtonecircletrim).execute();
+                loadWallpaper(viewHolder2.mWpBgDualtonecircletrim);
                 viewHolder2.mLlBgMainDualtonecircletrim.setBackground(getThemeDayNightBg());
                 viewHolder2.mQsAccentMainDualtonecircletrimWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder2.mQSTileMainDualtonecircletrimWifiActive.setColorFilter(qsTileIconActive);
@@ -852,7 +891,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 7:
                 ViewHolderSquircletrim viewHolder3 = (ViewHolderSquircletrim) holder;
-                new ThemeWallpaper(viewHolder3.mWpBgSquircletrim).execute();
+                loadWallpaper(viewHolder3.mWpBgSquircletrim);
                 viewHolder3.mLlBgMainSquircletrim.setBackground(getThemeDayNightBg());
                 viewHolder3.mQsAccentMainSquircletrimWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder3.mQSTileMainSquircletrimWifiActive.setColorFilter(qsTileIconActive);
@@ -882,7 +921,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 8:
                 ViewHolderAttemptmountain viewHolder4 = (ViewHolderAttemptmountain) holder;
-                new ThemeWallpaper(viewHolder4.mWpBgAttemptmountain).execute();
+                loadWallpaper(viewHolder4.mWpBgAttemptmountain);
                 viewHolder4.mLlBgMainAttemptmountain.setBackground(getThemeDayNightBg());
                 viewHolder4.mQsAccentMainAttemptmountainWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder4.mQSTileMainAttemptmountainWifiActive.setColorFilter(qsTileIconInactive);
@@ -912,7 +951,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 9:
                 ViewHolderCosmos viewHolder5 = (ViewHolderCosmos) holder;
-                new ThemeWallpaper(viewHolder5.mWpBgCosmos).execute();
+                loadWallpaper(viewHolder5.mWpBgCosmos);
                 viewHolder5.mLlBgMainCosmos.setBackground(getThemeDayNightBg());
                 viewHolder5.mQsAccentMainCosmosWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder5.mQSTileMainCosmosWifiActive.setColorFilter(qsTileIconInactive);
@@ -942,7 +981,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 10:
                 ViewHolderDottedcircle viewHolder6 = (ViewHolderDottedcircle) holder;
-                new ThemeWallpaper(viewHolder6.mWpBgDottedcircle).execute();
+                loadWallpaper(viewHolder6.mWpBgDottedcircle);
                 viewHolder6.mLlBgMainDottedcircle.setBackground(getThemeDayNightBg());
                 viewHolder6.mQsAccentMainDottedcircleWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder6.mQSTileMainDottedcircleWifiActive.setColorFilter(qsTileIconInactive);
@@ -972,7 +1011,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 11:
                 ViewHolderNinja viewHolder7 = (ViewHolderNinja) holder;
-                new ThemeWallpaper(viewHolder7.mWpBgNinja).execute();
+                loadWallpaper(viewHolder7.mWpBgNinja);
                 viewHolder7.mLlBgMainNinja.setBackground(getThemeDayNightBg());
                 viewHolder7.mQsAccentMainNinjaWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder7.mQSTileMainNinjaWifiActive.setColorFilter(qsTileIconActive);
@@ -1002,7 +1041,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 12:
                 ViewHolderPokesign viewHolder8 = (ViewHolderPokesign) holder;
-                new ThemeWallpaper(viewHolder8.mWpBgPokesign).execute();
+                loadWallpaper(viewHolder8.mWpBgPokesign);
                 viewHolder8.mLlBgMainPokesign.setBackground(getThemeDayNightBg());
                 viewHolder8.mQsAccentMainPokesignWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder8.mQSTileMainPokesignWifiActive.setColorFilter(qsTileIconActive);
@@ -1032,7 +1071,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 break;
             case 13:
                 ViewHolderWavey viewHolder9 = (ViewHolderWavey) holder;
-                new ThemeWallpaper(viewHolder9.mWpBgWavey).execute();
+                loadWallpaper(viewHolder9.mWpBgWavey);
                 viewHolder9.mLlBgMainWavey.setBackground(getThemeDayNightBg());
                 viewHolder9.mQsAccentMainWaveyWifi.setImageDrawable(getQSTileStyle(themeQSTileStyle, bgQsAccent));
                 viewHolder9.mQSTileMainWaveyWifiActive.setColorFilter(qsTileIconActive);
@@ -1063,11 +1102,40 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         }
     }
 
+    private void loadWallpaper(ImageView imageView) {
+        if (mOffscreen) {
+            imageView.setImageBitmap(decodeWallpaper(mThemeWpBackup));
+        } else {
+            new ThemeWallpaper(imageView, mThemeWpBackup).execute();
+        }
+    }
+
+    // Sampled down to about the card width, cards never show it any larger
+    private Bitmap decodeWallpaper(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int width = mResources.getDisplayMetrics().widthPixels;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= width) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        ThemesTrace.beginSection("wallpaper decode");
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
     public class ThemeWallpaper extends AsyncTask<Void, Void, Bitmap> {
         ImageView imageView;
+        String wallpaperPath;
 
-        public ThemeWallpaper(ImageView imgView) {
+        public ThemeWallpaper(ImageView imgView, String path) {
             imageView = imgView;
+            wallpaperPath = path;
         }
 
         @Override
@@ -1076,9 +1144,7 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         }
 
         protected Bitmap doInBackground(Void... params) {
-            File file = new File(mThemeWpBackup);
-            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
-            return bitmap;
+            return decodeWallpaper(wallpaperPath);
         }
 
         protected void onPostExecute(Bitmap bitmap) {
@@ -1106,6 +1172,13 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
     }
 
     private Typeface getTypeface() {
+        synchronized (sTypefaces) {
+            Typeface cached = sTypefaces.get(mThemeFont);
+            ThemesMetrics.recordCacheLookup("typefaces", cached != null);
+            if (cached != null) {
+                return cached;
+            }
+        }
         Typeface fontType = null;
         switch (mThemeFont) {
             case 1:
@@ -1169,13 +1242,18 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
                 fontType = Typeface.createFromAsset(mResources.getAssets(), "fonts/Surfer.ttf");
                 break;
         }
+        if (fontType != null) {
+            synchronized (sTypefaces) {
+                sTypefaces.put(mThemeFont, fontType);
+            }
+        }
         return fontType;
     }
 
     private ShapeDrawable getShapeDrawable(String path, int color) {
         ShapeDrawable shapeDrawable = new ShapeDrawable();
         final float pathSize = AdaptiveIconDrawable.MASK_SIZE;
-        final Path shapePath = new Path(PathParser.createPathFromPathData(path));
+        final Path shapePath = getShapePath(path);
         final int shapeSize = mResources.getDimensionPixelSize(R.dimen.dashboard_tile_image_size);
         shapeDrawable.setIntrinsicWidth(shapeSize);
         shapeDrawable.setIntrinsicHeight(shapeSize);
@@ -1187,6 +1265,18 @@ public class ThemesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         return shapeDrawable;
     }
 
+    private static Path getShapePath(String path) {
+        synchronized (sShapePaths) {
+            Path shapePath = sShapePaths.get(path);
+            ThemesMetrics.recordCacheLookup("shapes", shapePath != null);
+            if (shapePath == null) {
+                shapePath = new Path(PathParser.createPathFromPathData(path));
+                sShapePaths.put(path, shapePath);
+            }
+            return shapePath;
+        }
+    }
+
     private Drawable getNavbarStyle(String navStyle) {
         Drawable navbarStyle = null;
         switch (navStyle) {
@@ -18,8 +18,12 @@ package com.dirtyunicorns.themes;
 
 import android.app.DialogFragment;
 
+import com.dirtyunicorns.themes.utils.OverlayChangeSet;
+
 public interface ThemesListener {
 
     public void onCloseBackupDialog(DialogFragment dialog);
 
+    public void onOverlayPicked(OverlayChangeSet changeSet);
+
 }
@@ -22,14 +22,16 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.dirtyunicorns.themes.utils.ScheduleRule;
 import com.dirtyunicorns.themes.utils.ThemeDbUtils;
+import com.dirtyunicorns.themes.utils.ThemesTrace;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class ThemeDatabase extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "themeDb";
     private static final String THEME_TABLE = "themeTableDb";
     private static final String KEY_ID = "id";
@@ -47,8 +49,20 @@ public class ThemeDatabase extends SQLiteOpenHelper {
     private static final String KEY_THEME_NAVBAR_STYLE = "themeNavbarStyle";
     private static final String KEY_THEME_QSTILE_STYLE = "themeQSTileStyle";
 
+    // Schedule rules, one row per (days, time, saved theme) rule
+    private static final String SCHEDULE_TABLE = "scheduleTableDb";
+    private static final String KEY_SCHEDULE_DAYS = "days";
+    private static final String KEY_SCHEDULE_MINUTE = "minute";
+    private static final String KEY_SCHEDULE_THEME = "themeName";
+
     public ThemeDatabase(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // Same schema under another name, for seeding synthetic themes
+    // without touching the saved ones
+    public ThemeDatabase(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
     }
 
     @Override
@@ -63,17 +77,54 @@ public class ThemeDatabase extends SQLiteOpenHelper {
                 + KEY_THEME_NAVBAR_STYLE + " TEXT,"
                 + KEY_THEME_QSTILE_STYLE + " TEXT" + ")";
         db.execSQL(CREATE_THEME_TABLE);
+        createScheduleTable(db);
     }
 
+    private void createScheduleTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SCHEDULE_TABLE + "("
+                + KEY_ID + " INTEGER PRIMARY KEY," + KEY_SCHEDULE_DAYS + " INTEGER,"
+                + KEY_SCHEDULE_MINUTE + " INTEGER," + KEY_SCHEDULE_THEME + " TEXT" + ")");
+    }
+
+    // Saved themes survive upgrades, only missing tables are added
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + THEME_TABLE);
-        onCreate(db);
+        if (oldVersion < 2) {
+            createScheduleTable(db);
+        }
     }
 
     public void addThemeDbUtils(ThemeDbUtils themeDbUtils) {
-        SQLiteDatabase db = getWritableDatabase();
+        ThemesTrace.beginSection("ThemeDatabase.addThemeDbUtils");
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.insert(THEME_TABLE, null, getContentValues(themeDbUtils));
+            db.close();
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    public void addThemeDbUtilsList(List<ThemeDbUtils> themeDbUtilsList) {
+        ThemesTrace.beginSection("ThemeDatabase.addThemeDbUtilsList");
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ThemeDbUtils themeDbUtils : themeDbUtilsList) {
+                    db.insert(THEME_TABLE, null, getContentValues(themeDbUtils));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                db.close();
+            }
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
 
+    private ContentValues getContentValues(ThemeDbUtils themeDbUtils) {
         ContentValues values = new ContentValues();
         values.put(KEY_THEME_NAME, themeDbUtils.getThemeName());
         values.put(KEY_THEME_DAY_NIGHT, themeDbUtils.getThemeDayOrNight());
@@ -88,108 +139,205 @@ public class ThemeDatabase extends SQLiteOpenHelper {
         values.put(KEY_THEME_WP, themeDbUtils.getThemeWp());
         values.put(KEY_THEME_NAVBAR_STYLE, themeDbUtils.getThemeNavbarStyle());
         values.put(KEY_THEME_QSTILE_STYLE, themeDbUtils.getThemeQSTileStyle());
-
-        db.insert(THEME_TABLE, null, values);
-        db.close();
+        return values;
     }
 
     public ThemeDbUtils getThemeDbUtils(String str) {
-        SQLiteDatabase db = getReadableDatabase();
-
-        Cursor cursor = db.query(THEME_TABLE, new String[] {KEY_ID, KEY_THEME_NAME,
-                        KEY_THEME_DAY_NIGHT, KEY_THEME_ACCENT, KEY_THEME_NIGHT_COLOR,
-                        KEY_ACCENT_PICKER, KEY_THEME_SWITCH, KEY_ADAPTATIVE_ICON_SHAPE,
-                        KEY_THEME_FONT, KEY_THEME_ICON_SHAPE, KEY_THEME_SB_ICONS,
-                        KEY_THEME_WP, KEY_THEME_NAVBAR_STYLE, KEY_THEME_QSTILE_STYLE},
-                        KEY_THEME_NAME + " = ?",
-                        new String[] {str}, null, null, null, null);
-        if (cursor != null) {
-            cursor.moveToFirst();
-        }
+        ThemesTrace.beginSection("ThemeDatabase.getThemeDbUtils");
+        try {
+            SQLiteDatabase db = getReadableDatabase();
 
-        ThemeDbUtils themeDbUtils = new ThemeDbUtils(
-                Integer.parseInt(cursor.getString(0)),
-                cursor.getString(1), cursor.getString(2),
-                cursor.getString(3), cursor.getString(4),
-                cursor.getString(5), cursor.getString(6),
-                cursor.getString(7), cursor.getString(8),
-                cursor.getString(9), cursor.getString(10),
-                cursor.getString(11), cursor.getString(12),
-                cursor.getString(13));
-        cursor.close();
+            Cursor cursor = db.query(THEME_TABLE, new String[] {KEY_ID, KEY_THEME_NAME,
+                            KEY_THEME_DAY_NIGHT, KEY_THEME_ACCENT, KEY_THEME_NIGHT_COLOR,
+                            KEY_ACCENT_PICKER, KEY_THEME_SWITCH, KEY_ADAPTATIVE_ICON_SHAPE,
+                            KEY_THEME_FONT, KEY_THEME_ICON_SHAPE, KEY_THEME_SB_ICONS,
+                            KEY_THEME_WP, KEY_THEME_NAVBAR_STYLE, KEY_THEME_QSTILE_STYLE},
+                            KEY_THEME_NAME + " = ?",
+                            new String[] {str}, null, null, null, null);
+            if (!cursor.moveToFirst()) {
+                cursor.close();
+                return null;
+            }
 
-        return themeDbUtils;
+            ThemeDbUtils themeDbUtils = new ThemeDbUtils(
+                    Integer.parseInt(cursor.getString(0)),
+                    cursor.getString(1), cursor.getString(2),
+                    cursor.getString(3), cursor.getString(4),
+                    cursor.getString(5), cursor.getString(6),
+                    cursor.getString(7), cursor.getString(8),
+                    cursor.getString(9), cursor.getString(10),
+                    cursor.getString(11), cursor.getString(12),
+                    cursor.getString(13));
+            cursor.close();
+
+            return themeDbUtils;
+        } finally {
+            ThemesTrace.endSection();
+        }
     }
 
     public List<ThemeDbUtils> getAllThemeDbUtils() {
-        List<ThemeDbUtils> themeDbUtilsList = new ArrayList<>();
-        String selectQuery = "SELECT  * FROM " + THEME_TABLE;
-
-        SQLiteDatabase db = getWritableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
-
-        if (cursor.moveToFirst()) {
-            do {
-                ThemeDbUtils themeDbUtils = new ThemeDbUtils();
-                themeDbUtils.setID(Integer.parseInt(cursor.getString(0)));
-                themeDbUtils.setThemeName(cursor.getString(1));
-                themeDbUtils.setThemeDayOrNight(cursor.getString(2));
-                themeDbUtils.setThemeAccent(cursor.getString(3));
-                themeDbUtils.setThemeNightColor(cursor.getString(4));
-                themeDbUtils.setAccentPicker(cursor.getString(5));
-                themeDbUtils.setThemeSwitch(cursor.getString(6));
-                themeDbUtils.setAdaptiveIconShape(cursor.getString(7));
-                themeDbUtils.setThemeFont(cursor.getString(8));
-                themeDbUtils.setThemeIconShape(cursor.getString(9));
-                themeDbUtils.setThemeSbIcons(cursor.getString(10));
-                themeDbUtils.setThemeWp(cursor.getString(11));
-                themeDbUtils.setThemeNavbarStyle(cursor.getString(12));
-                themeDbUtils.setThemeQSTileStyle(cursor.getString(13));
-                themeDbUtilsList.add(themeDbUtils);
-            } while (cursor.moveToNext());
-        }
-        cursor.close();
+        ThemesTrace.beginSection("ThemeDatabase.getAllThemeDbUtils");
+        try {
+            List<ThemeDbUtils> themeDbUtilsList = new ArrayList<>();
+            String selectQuery = "SELECT  * FROM " + THEME_TABLE;
+
+            SQLiteDatabase db = getWritableDatabase();
+            Cursor cursor = db.rawQuery(selectQuery, null);
 
-        return themeDbUtilsList;
+            if (cursor.moveToFirst()) {
+                do {
+                    ThemeDbUtils themeDbUtils = new ThemeDbUtils();
+                    themeDbUtils.setID(Integer.parseInt(cursor.getString(0)));
+                    themeDbUtils.setThemeName(cursor.getString(1));
+                    themeDbUtils.setThemeDayOrNight(cursor.getString(2));
+                    themeDbUtils.setThemeAccent(cursor.getString(3));
+                    themeDbUtils.setThemeNightColor(cursor.getString(4));
+                    themeDbUtils.setAccentPicker(cursor.getString(5));
+                    themeDbUtils.setThemeSwitch(cursor.getString(6));
+                    themeDbUtils.setAdaptiveIconShape(cursor.getString(7));
+                    themeDbUtils.setThemeFont(cursor.getString(8));
+                    themeDbUtils.setThemeIconShape(cursor.getString(9));
+                    themeDbUtils.setThemeSbIcons(cursor.getString(10));
+                    themeDbUtils.setThemeWp(cursor.getString(11));
+                    themeDbUtils.setThemeNavbarStyle(cursor.getString(12));
+                    themeDbUtils.setThemeQSTileStyle(cursor.getString(13));
+                    themeDbUtilsList.add(themeDbUtils);
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+
+            return themeDbUtilsList;
+        } finally {
+            ThemesTrace.endSection();
+        }
     }
 
     public void updateThemeDbUtils(ThemeDbUtils themeDbUtils, String str) {
-        SQLiteDatabase db = getWritableDatabase();
+        ThemesTrace.beginSection("ThemeDatabase.updateThemeDbUtils");
+        try {
+            SQLiteDatabase db = getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(KEY_THEME_NAME, themeDbUtils.getThemeName());
-        values.put(KEY_THEME_DAY_NIGHT, themeDbUtils.getThemeDayOrNight());
-        values.put(KEY_THEME_ACCENT, themeDbUtils.getThemeAccent());
-        values.put(KEY_THEME_NIGHT_COLOR, themeDbUtils.getThemeNightColor());
-        values.put(KEY_ACCENT_PICKER, themeDbUtils.getAccentPicker());
-        values.put(KEY_THEME_SWITCH, themeDbUtils.getThemeSwitch());
-        values.put(KEY_ADAPTATIVE_ICON_SHAPE, themeDbUtils.getAdaptiveIconShape());
-        values.put(KEY_THEME_FONT, themeDbUtils.getThemeFont());
-        values.put(KEY_THEME_ICON_SHAPE, themeDbUtils.getThemeIconShape());
-        values.put(KEY_THEME_SB_ICONS, themeDbUtils.getThemeSbIcons());
-        values.put(KEY_THEME_WP, themeDbUtils.getThemeWp());
-        values.put(KEY_THEME_NAVBAR_STYLE, themeDbUtils.getThemeNavbarStyle());
-        values.put(KEY_THEME_QSTILE_STYLE, themeDbUtils.getThemeQSTileStyle());
+            ContentValues values = new ContentValues();
+            values.put(KEY_THEME_NAME, themeDbUtils.getThemeName());
+            values.put(KEY_THEME_DAY_NIGHT, themeDbUtils.getThemeDayOrNight());
+            values.put(KEY_THEME_ACCENT, themeDbUtils.getThemeAccent());
+            values.put(KEY_THEME_NIGHT_COLOR, themeDbUtils.getThemeNightColor());
+            values.put(KEY_ACCENT_PICKER, themeDbUtils.getAccentPicker());
+            values.put(KEY_THEME_SWITCH, themeDbUtils.getThemeSwitch());
+            values.put(KEY_ADAPTATIVE_ICON_SHAPE, themeDbUtils.getAdaptiveIconShape());
+            values.put(KEY_THEME_FONT, themeDbUtils.getThemeFont());
+            values.put(KEY_THEME_ICON_SHAPE, themeDbUtils.getThemeIconShape());
+            values.put(KEY_THEME_SB_ICONS, themeDbUtils.getThemeSbIcons());
+            values.put(KEY_THEME_WP, themeDbUtils.getThemeWp());
+            values.put(KEY_THEME_NAVBAR_STYLE, themeDbUtils.getThemeNavbarStyle());
+            values.put(KEY_THEME_QSTILE_STYLE, themeDbUtils.getThemeQSTileStyle());
 
-        db.update(THEME_TABLE, values, KEY_THEME_NAME + " = ?",
-                new String[] {str});
-        db.close();
+            db.update(THEME_TABLE, values, KEY_THEME_NAME + " = ?",
+                    new String[] {str});
+            // Rules follow a renamed theme
+            ContentValues rules = new ContentValues();
+            rules.put(KEY_SCHEDULE_THEME, themeDbUtils.getThemeName());
+            db.update(SCHEDULE_TABLE, rules, KEY_SCHEDULE_THEME + " = ?",
+                    new String[] {str});
+            db.close();
+        } finally {
+            ThemesTrace.endSection();
+        }
     }
 
     public void deleteThemeDbUtils(String str) {
-        SQLiteDatabase db = getWritableDatabase();
-        db.delete(THEME_TABLE, KEY_THEME_NAME + " = ?",
-                new String[] {str});
-        db.close();
+        ThemesTrace.beginSection("ThemeDatabase.deleteThemeDbUtils");
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(THEME_TABLE, KEY_THEME_NAME + " = ?",
+                    new String[] {str});
+            db.delete(SCHEDULE_TABLE, KEY_SCHEDULE_THEME + " = ?",
+                    new String[] {str});
+            db.close();
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    public int getThemeWpReferenceCount(String themeWp) {
+        ThemesTrace.beginSection("ThemeDatabase.getThemeWpReferenceCount");
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.query(THEME_TABLE, new String[] {KEY_ID},
+                    KEY_THEME_WP + " = ?", new String[] {themeWp}, null, null, null);
+            int count = cursor.getCount();
+            cursor.close();
+
+            return count;
+        } finally {
+            ThemesTrace.endSection();
+        }
     }
 
     public int getThemeDbUtilsCount() {
-        String countQuery = "SELECT  * FROM " + THEME_TABLE;
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery(countQuery, null);
-        int count = cursor.getCount();
-        cursor.close();
+        ThemesTrace.beginSection("ThemeDatabase.getThemeDbUtilsCount");
+        try {
+            String countQuery = "SELECT  * FROM " + THEME_TABLE;
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.rawQuery(countQuery, null);
+            int count = cursor.getCount();
+            cursor.close();
 
-        return count;
+            return count;
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    public long addScheduleRule(ScheduleRule rule) {
+        ThemesTrace.beginSection("ThemeDatabase.addScheduleRule");
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put(KEY_SCHEDULE_DAYS, rule.getDays());
+            values.put(KEY_SCHEDULE_MINUTE, rule.getMinute());
+            values.put(KEY_SCHEDULE_THEME, rule.getThemeName());
+            long id = db.insert(SCHEDULE_TABLE, null, values);
+            db.close();
+
+            return id;
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    public void deleteScheduleRule(long id) {
+        ThemesTrace.beginSection("ThemeDatabase.deleteScheduleRule");
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.delete(SCHEDULE_TABLE, KEY_ID + " = ?",
+                    new String[] {String.valueOf(id)});
+            db.close();
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    public List<ScheduleRule> getAllScheduleRules() {
+        ThemesTrace.beginSection("ThemeDatabase.getAllScheduleRules");
+        try {
+            List<ScheduleRule> rules = new ArrayList<>();
+            SQLiteDatabase db = getReadableDatabase();
+            Cursor cursor = db.query(SCHEDULE_TABLE, new String[] {KEY_ID, KEY_SCHEDULE_DAYS,
+                    KEY_SCHEDULE_MINUTE, KEY_SCHEDULE_THEME}, null, null, null, null, KEY_ID);
+
+            if (cursor.moveToFirst()) {
+                do {
+                    rules.add(new ScheduleRule(cursor.getLong(0), cursor.getInt(1),
+                            cursor.getInt(2), cursor.getString(3)));
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+
+            return rules;
+        } finally {
+            ThemesTrace.endSection();
+        }
     }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.receivers;
+
+import static com.dirtyunicorns.themes.utils.duUtils.clearSchedule;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.preference.PreferenceManager;
+
+import com.dirtyunicorns.themes.services.ThemeScheduleJobService;
+import com.dirtyunicorns.themes.utils.ThemeScheduler;
+
+public class ThemesBootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            return;
+        }
+
+        ThemeScheduler.Transition active = ThemeScheduler.getActiveTransition(context,
+                System.currentTimeMillis());
+        if (active == null) {
+            ThemeScheduler.schedule(context);
+            return;
+        }
+
+        // The job skips the apply when the theme is already the right one,
+        // which is the usual case, and waits for the overlay service
+        ThemeScheduleJobService.enqueue(context, active, false);
+
+        // A transition that should have fired while the device was off
+        boolean missed = active.getTime() > ThemeScheduler.getLastTransition(context);
+        if (!missed) {
+            ThemeScheduler.schedule(context);
+        } else if (!active.isStart() && !ThemeScheduler.isRepeating(
+                PreferenceManager.getDefaultSharedPreferences(context))) {
+            clearSchedule(context);
+        } else {
+            ThemeScheduler.onTransition(context);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.services;
+
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_TOAST;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.PersistableBundle;
+import android.widget.Toast;
+
+import androidx.preference.PreferenceManager;
+
+import com.dirtyunicorns.themes.R;
+import com.dirtyunicorns.themes.utils.OverlayApplyQueue;
+import com.dirtyunicorns.themes.utils.OverlayChangeSet;
+import com.dirtyunicorns.themes.utils.ThemeScheduler;
+
+public class ThemeScheduleJobService extends JobService {
+
+    // Scheduled themes are applied here rather than in the receivers, so a
+    // slow apply isn't bound to the broadcast timeout. There's one job id,
+    // a newer transition replaces one that hasn't run yet.
+    private static final int JOB_ID = 1;
+    private static final String EXTRA_THEME_VALUE = "theme_value";
+    private static final String EXTRA_THEME_NAME = "theme_name";
+    private static final String EXTRA_TOAST = "toast";
+    private static final long BACKOFF_MILLIS = 10 * 1000;
+
+    private final Handler mHandler = new Handler();
+
+    public static void enqueue(Context context, String themeValue, boolean toast) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_THEME_VALUE, themeValue);
+        enqueue(context, extras, toast);
+    }
+
+    // Weekday rules restore a whole saved theme
+    public static void enqueueSavedTheme(Context context, String themeName, boolean toast) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_THEME_NAME, themeName);
+        enqueue(context, extras, toast);
+    }
+
+    public static void enqueue(Context context, ThemeScheduler.Transition transition,
+            boolean toast) {
+        if (transition.getThemeName() != null) {
+            enqueueSavedTheme(context, transition.getThemeName(), toast);
+        } else {
+            enqueue(context, transition.getThemeValue(), toast);
+        }
+    }
+
+    private static void enqueue(Context context, PersistableBundle extras, boolean toast) {
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler == null) {
+            return;
+        }
+        extras.putBoolean(EXTRA_TOAST, toast);
+        jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ThemeScheduleJobService.class))
+                .setExtras(extras)
+                .setOverrideDeadline(0)
+                .setBackoffCriteria(BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final String themeValue = params.getExtras().getString(EXTRA_THEME_VALUE);
+        final String themeName = params.getExtras().getString(EXTRA_THEME_NAME);
+        if (themeName == null && themeValue == null) {
+            return false;
+        }
+        if (!OverlayApplyQueue.isOverlayServiceReady()) {
+            // Early in boot, come back after the backoff. The job has to have
+            // started before it can be finished, so that's posted.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    jobFinished(params, true);
+                }
+            });
+            return true;
+        }
+        final boolean toast = params.getExtras().getBoolean(EXTRA_TOAST);
+        OverlayApplyQueue.Callback callback = new OverlayApplyQueue.Callback() {
+            @Override
+            public void onProgress(int applied, int total) {
+            }
+
+            @Override
+            public void onUserComplete(int userId, boolean success) {
+            }
+
+            @Override
+            public void onComplete(boolean success, int changes) {
+                // A failed apply was already reverted, retrying it
+                // would most likely fail the same way
+                if (success && changes > 0 && toast) {
+                    showAppliedToast(themeValue, themeName);
+                }
+                jobFinished(params, false);
+            }
+        };
+        OverlayApplyQueue queue = OverlayApplyQueue.getInstance(this);
+        if (themeName != null) {
+            // The saved theme is read from the database on the queue thread
+            queue.submitSavedTheme(themeName, callback);
+        } else {
+            queue.submit(new OverlayChangeSet().setThemeSwitch(themeValue), callback);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The queue finishes what it started, run again if it was stopped
+        // before that
+        return true;
+    }
+
+    private void showAppliedToast(String themeValue, String themeName) {
+        if (!PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(PREF_THEME_SCHEDULED_TOAST, true)) {
+            return;
+        }
+        if (themeName != null) {
+            Toast.makeText(this, themeName + " " + getString(R.string.theme_schedule_applied),
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] values = getResources().getStringArray(R.array.theme_scheduled_values);
+        String[] titles = getResources().getStringArray(R.array.theme_scheduled_titles);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(themeValue)) {
+                Toast.makeText(this, titles[i] + " " + getString(R.string.theme_schedule_applied),
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+        }
+    }
+}
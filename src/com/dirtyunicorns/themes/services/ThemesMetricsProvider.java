@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.services;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.dirtyunicorns.themes.utils.ThemesMetrics;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+public class ThemesMetricsProvider extends ContentProvider {
+
+    // Holds no data, it's only here so the metrics can be pulled with
+    // adb shell dumpsys activity provider com.dirtyunicorns.themes/.services.ThemesMetricsProvider
+    // Providers are published with the process, unlike services that have
+    // to be running. Pass "reset" to start over.
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            ThemesMetrics.reset();
+            writer.println("Metrics reset");
+            return;
+        }
+        ThemesMetrics.dump(writer);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ServiceManager;
+import android.util.SparseBooleanArray;
+
+import com.dirtyunicorns.themes.db.ThemeDatabase;
+
+public class OverlayApplyQueue {
+
+    // Callbacks are always delivered on the main thread
+    public interface Callback {
+        void onProgress(int applied, int total);
+        void onUserComplete(int userId, boolean success);
+        void onComplete(boolean success, int changes);
+    }
+
+    public interface PreviewCallback {
+        void onPreview(int changes);
+    }
+
+    private static OverlayApplyQueue sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private OverlayApplyQueue(Context context) {
+        mContext = context.getApplicationContext();
+        HandlerThread thread = new HandlerThread("OverlayApplyQueue");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized OverlayApplyQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OverlayApplyQueue(context);
+        }
+        return sInstance;
+    }
+
+    // Doesn't wait for the service, it may not be up yet early in boot
+    public static boolean isOverlayServiceReady() {
+        return ServiceManager.checkService(Context.OVERLAY_SERVICE) != null;
+    }
+
+    private OverlayService getOverlayService() {
+        return OverlayService.getInstance(mContext);
+    }
+
+    // Change sets run one at a time in submission order. Components that
+    // already match the live state of every target user are skipped, and
+    // a failed apply is reverted from the journal before the callback is
+    // told. Change sets without users go to the ones set in the app.
+    public void submit(final OverlayChangeSet changeSet, final Callback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                apply(changeSet, callback);
+            }
+        });
+    }
+
+    // Looks the saved theme up on the queue thread rather than the caller's.
+    // A theme deleted since it was scheduled completes without changes.
+    public void submitSavedTheme(final String themeName, final Callback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ThemeDbUtils theme = new ThemeDatabase(mContext).getThemeDbUtils(themeName);
+                if (theme == null) {
+                    postComplete(callback, true, 0);
+                    return;
+                }
+                apply(OverlayChangeSet.fromSavedTheme(mContext, theme), callback);
+            }
+        });
+    }
+
+    private void apply(OverlayChangeSet changeSet, final Callback callback) {
+        ThemesTrace.beginAction("OverlayApplyQueue.apply");
+        if (!changeSet.hasUsers()) {
+            changeSet.setUsers(duUtils.getThemeUsers(mContext));
+        }
+        OverlayState[] states = changeSet.queryStates(getOverlayService());
+        int changes = changeSet.prune(mContext, states);
+        boolean success = true;
+        if (changes > 0) {
+            SparseBooleanArray results = changeSet.apply(mContext, getOverlayService(),
+                    states, true, new OverlayChangeSet.ProgressListener() {
+                        @Override
+                        public void onProgress(int applied, int total) {
+                            postProgress(callback, applied, total);
+                        }
+                    });
+            for (int i = 0; i < results.size(); i++) {
+                postUserComplete(callback, results.keyAt(i), results.valueAt(i));
+            }
+            success = OverlayChangeSet.isSuccess(results);
+            changeSet.writePreferences(mContext);
+            if (!success) {
+                ThemeJournal.revert(mContext, getOverlayService());
+            }
+        }
+        ThemesTrace.endAction();
+        postComplete(callback, success, changes);
+    }
+
+    // Prunes the change set against the live state without applying it,
+    // so the number of components it changes can be shown first
+    public void preview(final OverlayChangeSet changeSet, final PreviewCallback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!changeSet.hasUsers()) {
+                    changeSet.setUsers(duUtils.getThemeUsers(mContext));
+                }
+                final int changes = changeSet.prune(mContext,
+                        changeSet.queryStates(getOverlayService()));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPreview(changes);
+                    }
+                });
+            }
+        });
+    }
+
+    public void revert(final Callback callback) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ThemesTrace.beginAction("OverlayApplyQueue.revert");
+                boolean reverted = ThemeJournal.revert(mContext, getOverlayService());
+                ThemesTrace.endAction();
+                postComplete(callback, reverted, reverted ? 1 : 0);
+            }
+        });
+    }
+
+    private void postProgress(final Callback callback, final int applied, final int total) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onProgress(applied, total);
+            }
+        });
+    }
+
+    private void postUserComplete(final Callback callback, final int userId,
+            final boolean success) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onUserComplete(userId, success);
+            }
+        });
+    }
+
+    private void postComplete(final Callback callback, final boolean success,
+            final int changes) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(success, changes);
+            }
+        });
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Themes.PREF_ADAPTIVE_ICON_SHAPE;
+import static com.dirtyunicorns.themes.Themes.PREF_FONT_PICKER;
+import static com.dirtyunicorns.themes.Themes.PREF_PANEL_BG;
+import static com.dirtyunicorns.themes.Themes.PREF_ROUNDED_CORNER;
+import static com.dirtyunicorns.themes.Themes.PREF_STATUSBAR_ICONS;
+import static com.dirtyunicorns.themes.Themes.PREF_SWITCH_STYLE;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_ACCENT_COLOR;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_NAVBAR_STYLE;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_QSTILE_STYLE;
+
+import com.android.internal.util.du.ThemesUtils;
+
+public enum OverlayCategory {
+
+    // Picker categories store the overlay package name, "default" meaning none
+    ACCENT(PREF_THEME_ACCENT_COLOR, ThemesUtils.ACCENTS, "default", false),
+    NAVBAR(PREF_THEME_NAVBAR_STYLE, ThemesUtils.NAVBAR_STYLES, "default", false),
+    QS_TILE_STYLE(PREF_THEME_QSTILE_STYLE, ThemesUtils.QS_TILE_THEMES,
+            "com.android.systemui.qstile.default", false),
+
+    // List categories store a 1-based position, "1" being the stock entry
+    FONT(PREF_FONT_PICKER, ThemesUtils.FONTS, "1", true),
+    ADAPTIVE_ICON_SHAPE(PREF_ADAPTIVE_ICON_SHAPE, ThemesUtils.ADAPTIVE_ICON_SHAPE, "1", true),
+    STATUSBAR_ICONS(PREF_STATUSBAR_ICONS, ThemesUtils.STATUSBAR_ICONS, "1", true),
+    SWITCH_STYLE(PREF_SWITCH_STYLE, ThemesUtils.SWITCH_STYLE, "1", true),
+    PANEL_BG(PREF_PANEL_BG, ThemesUtils.PANEL_BG_STYLE, "1", true),
+    ROUNDED_UI(PREF_ROUNDED_CORNER, ThemesUtils.UI_RADIUS, "1", true);
+
+    private final String mKey;
+    private final String[] mOverlays;
+    private final String mDefaultValue;
+    private final boolean mIndexed;
+
+    OverlayCategory(String key, String[] overlays, String defaultValue, boolean indexed) {
+        mKey = key;
+        mOverlays = overlays;
+        mDefaultValue = defaultValue;
+        mIndexed = indexed;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public String[] getOverlays() {
+        return mOverlays;
+    }
+
+    public String getDefaultValue() {
+        return mDefaultValue;
+    }
+
+    public String getTargetOverlay(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (mIndexed) {
+            try {
+                int position = Integer.parseInt(value) - 2;
+                return position >= 0 && position < mOverlays.length ? mOverlays[position] : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        // Stock is no overlay, whether stored as "default" or as the
+        // category's own default value
+        if ("default".equals(value) || mDefaultValue.equals(value)) {
+            return null;
+        }
+        // Only the category's own overlays, a stored package name is never
+        // enabled as is
+        for (String overlay : mOverlays) {
+            if (overlay.equals(value)) {
+                return overlay;
+            }
+        }
+        return null;
+    }
+
+    // Whether the value is the stock one or names one of the category's overlays
+    public boolean isValidValue(String value) {
+        if (value == null) {
+            return false;
+        }
+        return mDefaultValue.equals(value) || (!mIndexed && "default".equals(value))
+                || getTargetOverlay(value) != null;
+    }
+
+    // Preference value for the given enabled overlay, the inverse of getTargetOverlay()
+    public String getValue(String overlay) {
+        if (overlay == null) {
+            return mDefaultValue;
+        }
+        if (mIndexed) {
+            for (int i = 0; i < mOverlays.length; i++) {
+                if (mOverlays[i].equals(overlay)) {
+                    return String.valueOf(i + 2);
+                }
+            }
+            return mDefaultValue;
+        }
+        return overlay;
+    }
+
+    public static OverlayCategory fromKey(String key) {
+        for (OverlayCategory category : values()) {
+            if (category.mKey.equals(key)) {
+                return category;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static android.os.UserHandle.USER_SYSTEM;
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
+
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.RemoteException;
+import android.util.SparseBooleanArray;
+
+import androidx.preference.PreferenceManager;
+
+import com.android.internal.util.du.ThemesUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OverlayChangeSet {
+
+    // Background overlays selected by theme_switch values "3" to "9"
+    public static final String[][] BACKGROUNDS = {
+            ThemesUtils.PITCH_BLACK,
+            ThemesUtils.SOLARIZED_DARK,
+            ThemesUtils.CHOCO_X,
+            ThemesUtils.BAKED_GREEN,
+            ThemesUtils.DARK_GREY,
+            ThemesUtils.MATERIAL_OCEAN,
+            ThemesUtils.TRANSPARENT_CLEAR
+    };
+
+    // Writes per key by change sets that have not reached the preference
+    // listeners yet, so those can tell them apart from user changes. Every
+    // write notifies once, so a key written twice is counted twice.
+    private static final Map<String, Integer> sPendingWrites = new HashMap<>();
+
+    // Users are applied in parallel, the overlay service handles each
+    // user's overlays independently
+    private static ExecutorService sUserExecutor;
+
+    private final Map<OverlayCategory, String> mCategories = new LinkedHashMap<>();
+    private String mThemeSwitch;
+    private String mWallpaper;
+    private boolean mClearPreferences;
+    private int[] mUserIds;
+
+    public OverlayChangeSet setCategory(OverlayCategory category, String value) {
+        mCategories.put(category, value);
+        return this;
+    }
+
+    public OverlayChangeSet setThemeSwitch(String value) {
+        mThemeSwitch = value;
+        return this;
+    }
+
+    public OverlayChangeSet setWallpaper(String path) {
+        mWallpaper = path;
+        return this;
+    }
+
+    // Remove the preferences instead of storing the new values
+    public OverlayChangeSet setClearPreferences(boolean clear) {
+        mClearPreferences = clear;
+        return this;
+    }
+
+    // Users the overlays are applied to, the system user if none are set
+    public OverlayChangeSet setUsers(int... userIds) {
+        mUserIds = userIds;
+        return this;
+    }
+
+    public boolean hasUsers() {
+        return mUserIds != null && mUserIds.length > 0;
+    }
+
+    public int[] getUsers() {
+        return hasUsers() ? mUserIds : new int[] { USER_SYSTEM };
+    }
+
+    Map<OverlayCategory, String> getCategories() {
+        return mCategories;
+    }
+
+    String getThemeSwitch() {
+        return mThemeSwitch;
+    }
+
+    String getWallpaper() {
+        return mWallpaper;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    interface ProgressListener {
+        void onProgress(int applied, int total);
+    }
+
+    // Every notification for the key consumes one of its pending writes
+    public static boolean isOwnWrite(String key) {
+        if (key == null) {
+            return false;
+        }
+        synchronized (sPendingWrites) {
+            Integer count = sPendingWrites.get(key);
+            if (count == null) {
+                return false;
+            }
+            if (count > 1) {
+                sPendingWrites.put(key, count - 1);
+            } else {
+                sPendingWrites.remove(key);
+            }
+            return true;
+        }
+    }
+
+    private static void addPendingWrite(String key) {
+        synchronized (sPendingWrites) {
+            Integer count = sPendingWrites.get(key);
+            sPendingWrites.put(key, count != null ? count + 1 : 1);
+        }
+    }
+
+    public int size() {
+        return mCategories.size() + (mThemeSwitch != null ? 1 : 0) + (mWallpaper != null ? 1 : 0);
+    }
+
+    // Drops every component that already matches the live state of all
+    // the given users and returns the number of components left to apply
+    public int prune(Context context, OverlayState... states) {
+        ThemesTrace.beginSection("OverlayChangeSet.prune");
+        try {
+            Iterator<Map.Entry<OverlayCategory, String>> it = mCategories.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<OverlayCategory, String> entry = it.next();
+                OverlayCategory category = entry.getKey();
+                String target = category.getTargetOverlay(entry.getValue());
+                boolean applied = true;
+                for (OverlayState state : states) {
+                    int enabledCount = state.getEnabledCount(category.getOverlays());
+                    applied &= target == null ? enabledCount == 0
+                            : enabledCount == 1 && state.isEnabled(target);
+                }
+                if (applied) {
+                    it.remove();
+                }
+            }
+            if (mThemeSwitch != null) {
+                boolean applied = true;
+                for (OverlayState state : states) {
+                    applied &= isThemeSwitchApplied(context, state);
+                }
+                if (applied) {
+                    mThemeSwitch = null;
+                }
+            }
+            if (mWallpaper != null && WallpaperApplier.isApplied(context, mWallpaper)) {
+                mWallpaper = null;
+            }
+            return size();
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    private boolean isThemeSwitchApplied(Context context, OverlayState state) {
+        if (!mThemeSwitch.equals(state.getThemeSwitch(context))) {
+            return false;
+        }
+        String[] target = getBackground(mThemeSwitch);
+        return target == null || state.getEnabledCount(target) == target.length;
+    }
+
+    public boolean commit(Context context, OverlayService service) {
+        return commit(context, service, queryStates(service), true, true);
+    }
+
+    // Returns false if the overlay service failed part way for any user,
+    // the previous state can then be restored with ThemeJournal.revert().
+    // The preferences hold a single user's values, change sets for other
+    // users leave them alone.
+    boolean commit(Context context, OverlayService service, OverlayState[] states,
+            boolean journal, boolean preferences) {
+        SparseBooleanArray results = apply(context, service, states, journal, null);
+        if (preferences) {
+            writePreferences(context);
+        }
+        return isSuccess(results);
+    }
+
+    // One snapshot per target user, in the order of getUsers()
+    OverlayState[] queryStates(OverlayService service) {
+        int[] userIds = getUsers();
+        OverlayState[] states = new OverlayState[userIds.length];
+        for (int i = 0; i < userIds.length; i++) {
+            states[i] = OverlayState.query(service, userIds[i]);
+        }
+        return states;
+    }
+
+    static boolean isSuccess(SparseBooleanArray results) {
+        for (int i = 0; i < results.size(); i++) {
+            if (!results.valueAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Applies the change set to the user of every state and returns the
+    // result for each user. Night mode and the wallpaper are only set once.
+    SparseBooleanArray apply(Context context, final OverlayService service,
+            OverlayState[] states, boolean journal, final ProgressListener listener) {
+        if (journal) {
+            // Users can differ, each one gets its own previous state back
+            OverlayChangeSet[] previous = new OverlayChangeSet[states.length];
+            int[] userIds = new int[states.length];
+            for (int i = 0; i < states.length; i++) {
+                previous[i] = getPrevious(context, states[i]);
+                userIds[i] = states[i].getUserId();
+            }
+            ThemeJournal.record(context, previous, userIds);
+        }
+        final List<Map<String, Boolean>> changes = new ArrayList<>();
+        int total = 0;
+        ThemesTrace.beginSection("OverlayChangeSet.diff");
+        for (OverlayState state : states) {
+            Map<String, Boolean> overlays = getOverlayChanges(state);
+            changes.add(overlays);
+            total += overlays.size();
+        }
+        ThemesTrace.endSection();
+
+        if (mThemeSwitch != null) {
+            ThemesTrace.beginSection("setNightMode");
+            service.setNightMode("1".equals(mThemeSwitch) ? UiModeManager.MODE_NIGHT_NO
+                    : UiModeManager.MODE_NIGHT_YES);
+            ThemesTrace.endSection();
+        }
+        final AtomicInteger applied = new AtomicInteger();
+        final int totalChanges = total;
+        SparseBooleanArray results = new SparseBooleanArray();
+        if (states.length == 1) {
+            results.put(states[0].getUserId(), applyOverlays(service,
+                    states[0].getUserId(), changes.get(0), applied, totalChanges, listener));
+        } else {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            ExecutorService executor = getUserExecutor();
+            for (int i = 0; i < states.length; i++) {
+                final int userId = states[i].getUserId();
+                final Map<String, Boolean> overlays = changes.get(i);
+                futures.add(executor.submit(ThemesTrace.inAction(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return applyOverlays(service, userId, overlays, applied,
+                                totalChanges, listener);
+                    }
+                })));
+            }
+            for (int i = 0; i < states.length; i++) {
+                boolean success;
+                try {
+                    success = futures.get(i).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    success = false;
+                }
+                results.put(states[i].getUserId(), success);
+            }
+        }
+        applyWallpaper(context);
+        return results;
+    }
+
+    private static synchronized ExecutorService getUserExecutor() {
+        if (sUserExecutor == null) {
+            sUserExecutor = Executors.newCachedThreadPool();
+        }
+        return sUserExecutor;
+    }
+
+    private Map<String, Boolean> getOverlayChanges(OverlayState state) {
+        Map<String, Boolean> overlays = new LinkedHashMap<>();
+        for (Map.Entry<OverlayCategory, String> entry : mCategories.entrySet()) {
+            OverlayCategory category = entry.getKey();
+            OverlayDiff.addCategoryChanges(overlays, state, category.getOverlays(),
+                    category.getTargetOverlay(entry.getValue()));
+        }
+        if (mThemeSwitch != null) {
+            OverlayDiff.addBackgroundChanges(overlays, state, BACKGROUNDS,
+                    getBackground(mThemeSwitch));
+        }
+        return overlays;
+    }
+
+    private static boolean applyOverlays(OverlayService service, int userId,
+            Map<String, Boolean> overlays, AtomicInteger applied, int total,
+            ProgressListener listener) {
+        boolean success = true;
+        ThemesTrace.beginSection("setEnabled batch");
+        for (Map.Entry<String, Boolean> overlay : overlays.entrySet()) {
+            try {
+                service.setEnabled(overlay.getKey(), overlay.getValue(), userId);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+                success = false;
+            }
+            int count = applied.incrementAndGet();
+            if (listener != null) {
+                listener.onProgress(count, total);
+            }
+        }
+        ThemesTrace.endSection();
+        return success;
+    }
+
+    private OverlayChangeSet getPrevious(Context context, OverlayState state) {
+        OverlayChangeSet previous = new OverlayChangeSet();
+        for (OverlayCategory category : mCategories.keySet()) {
+            previous.setCategory(category,
+                    category.getValue(state.getEnabledOverlay(category.getOverlays())));
+        }
+        if (mThemeSwitch != null) {
+            previous.setThemeSwitch(state.getThemeSwitch(context));
+        }
+        if (mWallpaper != null) {
+            // Only a wallpaper we set ourselves can be put back
+            previous.setWallpaper(WallpaperApplier.getAppliedWallpaper(context));
+        }
+        return previous;
+    }
+
+    public void writePreferences(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Map<String, String> values = new LinkedHashMap<>();
+        Map<String, String> defaults = new HashMap<>();
+        for (Map.Entry<OverlayCategory, String> entry : mCategories.entrySet()) {
+            values.put(entry.getKey().getKey(), entry.getValue());
+            defaults.put(entry.getKey().getKey(), entry.getKey().getDefaultValue());
+        }
+        if (mThemeSwitch != null) {
+            values.put(PREF_THEME_SWITCH, mThemeSwitch);
+            defaults.put(PREF_THEME_SWITCH, "1");
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        if (mClearPreferences) {
+            for (String key : values.keySet()) {
+                if (prefs.contains(key)) {
+                    addPendingWrite(key);
+                    editor.remove(key);
+                }
+            }
+            editor.apply();
+            return;
+        }
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            // Unchanged values never reach the listeners. A missing key reads
+            // as its default, so stock state doesn't bring back the keys a
+            // reset removed.
+            if (value.getValue() != null && !value.getValue().equals(
+                    prefs.getString(value.getKey(), defaults.get(value.getKey())))) {
+                addPendingWrite(value.getKey());
+                editor.putString(value.getKey(), value.getValue());
+            }
+        }
+        editor.apply();
+    }
+
+    private void applyWallpaper(Context context) {
+        if (mWallpaper != null) {
+            WallpaperApplier.getInstance(context).apply(mWallpaper);
+        }
+    }
+
+    // Change set describing what is live right now
+    public static OverlayChangeSet fromState(Context context, OverlayState state) {
+        OverlayChangeSet changeSet = new OverlayChangeSet();
+        for (OverlayCategory category : OverlayCategory.values()) {
+            changeSet.setCategory(category,
+                    category.getValue(state.getEnabledOverlay(category.getOverlays())));
+        }
+        changeSet.setThemeSwitch(state.getThemeSwitch(context));
+        return changeSet;
+    }
+
+    // Every component of a saved theme, like restoring it with all the
+    // switches on
+    public static OverlayChangeSet fromSavedTheme(Context context, ThemeDbUtils theme) {
+        OverlayChangeSet changeSet = new OverlayChangeSet()
+                .setThemeSwitch(theme.getThemeSwitch())
+                .setCategory(OverlayCategory.ACCENT, theme.getAccentPicker())
+                .setCategory(OverlayCategory.FONT, theme.getThemeFont())
+                .setCategory(OverlayCategory.ADAPTIVE_ICON_SHAPE, theme.getAdaptiveIconShape())
+                .setCategory(OverlayCategory.STATUSBAR_ICONS, theme.getThemeSbIcons())
+                .setCategory(OverlayCategory.QS_TILE_STYLE, theme.getThemeQSTileStyle())
+                .setWallpaper(theme.getThemeWp());
+        if (duUtils.threeButtonNavbarEnabled(context)) {
+            changeSet.setCategory(OverlayCategory.NAVBAR, theme.getThemeNavbarStyle());
+        }
+        return changeSet;
+    }
+
+    public static String[] getBackground(String themeSwitch) {
+        try {
+            int position = Integer.parseInt(themeSwitch) - 3;
+            return position >= 0 && position < BACKGROUNDS.length ? BACKGROUNDS[position] : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import java.util.Map;
+
+public class OverlayDiff {
+
+    // The overlay changes a change set makes, computed against whatever
+    // reports the enabled overlays. Plain Java with no framework
+    // dependencies, the host benchmark runs it as is.
+    public interface EnabledOverlays {
+        boolean isEnabled(String overlay);
+    }
+
+    // Disables the category's other enabled overlays and enables the
+    // target, a null target leaving the category without an overlay
+    public static void addCategoryChanges(Map<String, Boolean> overlays,
+            EnabledOverlays state, String[] categoryOverlays, String target) {
+        for (String overlay : categoryOverlays) {
+            if (!overlay.equals(target) && state.isEnabled(overlay)) {
+                overlays.put(overlay, false);
+            }
+        }
+        if (target != null) {
+            overlays.put(target, true);
+        }
+    }
+
+    // Backgrounds are sets of overlays, all of the target's are enabled
+    // and every other enabled one is turned off
+    public static void addBackgroundChanges(Map<String, Boolean> overlays,
+            EnabledOverlays state, String[][] backgrounds, String[] target) {
+        for (String[] background : backgrounds) {
+            for (String overlay : background) {
+                if (background == target || state.isEnabled(overlay)) {
+                    overlays.put(overlay, background == target);
+                }
+            }
+        }
+    }
+}
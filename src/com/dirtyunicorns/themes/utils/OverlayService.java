@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.om.IOverlayManager;
+import android.content.om.OverlayInfo;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public abstract class OverlayService {
+
+    // Every call an apply makes to the system, so change sets can be run
+    // against FakeOverlayService instead of the real services
+    private static OverlayService sInstance;
+
+    public static synchronized OverlayService getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SystemOverlayService(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public abstract Set<String> getEnabledOverlays(int userId) throws RemoteException;
+
+    public abstract boolean isEnabled(String overlay, int userId) throws RemoteException;
+
+    public abstract void setEnabled(String overlay, boolean enabled, int userId)
+            throws RemoteException;
+
+    public abstract int getNightMode();
+
+    public abstract void setNightMode(int mode);
+
+    private static class SystemOverlayService extends OverlayService {
+
+        private final Context mContext;
+        private IOverlayManager mOverlayManager;
+
+        SystemOverlayService(Context context) {
+            mContext = context;
+        }
+
+        // Looked up on first use, so an instance created before the
+        // service came up still finds it
+        private synchronized IOverlayManager getOverlayManager() {
+            if (mOverlayManager == null) {
+                mOverlayManager = IOverlayManager.Stub.asInterface(
+                        ServiceManager.getService(Context.OVERLAY_SERVICE));
+            }
+            return mOverlayManager;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getEnabledOverlays(int userId) throws RemoteException {
+            ThemesTrace.countBinderCall();
+            Map<String, List<OverlayInfo>> overlays = getOverlayManager().getAllOverlays(userId);
+            Set<String> enabled = new HashSet<>();
+            for (List<OverlayInfo> infos : overlays.values()) {
+                for (OverlayInfo info : infos) {
+                    if (info.isEnabled()) {
+                        enabled.add(info.packageName);
+                    }
+                }
+            }
+            return enabled;
+        }
+
+        @Override
+        public boolean isEnabled(String overlay, int userId) throws RemoteException {
+            ThemesTrace.countBinderCall();
+            OverlayInfo info = getOverlayManager().getOverlayInfo(overlay, userId);
+            return info != null && info.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(String overlay, boolean enabled, int userId)
+                throws RemoteException {
+            ThemesTrace.countBinderCall();
+            getOverlayManager().setEnabled(overlay, enabled, userId);
+        }
+
+        @Override
+        public int getNightMode() {
+            UiModeManager uiModeManager = mContext.getSystemService(UiModeManager.class);
+            if (uiModeManager == null) {
+                return -1;
+            }
+            ThemesTrace.countBinderCall();
+            return uiModeManager.getNightMode();
+        }
+
+        @Override
+        public void setNightMode(int mode) {
+            UiModeManager uiModeManager = mContext.getSystemService(UiModeManager.class);
+            if (uiModeManager != null) {
+                ThemesTrace.countBinderCall();
+                uiModeManager.setNightMode(mode);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.UiModeManager;
+import android.content.Context;
+import android.os.RemoteException;
+import android.os.UserHandle;
+
+import java.util.Set;
+
+public class OverlayState implements OverlayDiff.EnabledOverlays {
+
+    // Snapshot of the enabled overlays, taken with a single call to the
+    // overlay service instead of one isThemeEnabled() call per package
+    private final Set<String> mEnabled;
+    private final OverlayService mService;
+    private final int mUserId;
+    private int mNightMode = -1;
+
+    private OverlayState(Set<String> enabled, OverlayService service, int userId) {
+        mEnabled = enabled;
+        mService = service;
+        mUserId = userId;
+    }
+
+    // State of the user running the app. Also captures the night mode, so
+    // the theme switch can be read from the snapshot on any thread
+    public static OverlayState query(Context context) {
+        OverlayService service = OverlayService.getInstance(context);
+        OverlayState state = query(service, UserHandle.myUserId());
+        state.mNightMode = service.getNightMode();
+        return state;
+    }
+
+    public static OverlayState query(OverlayService service, int userId) {
+        ThemesTrace.beginSection("OverlayState.query");
+        try {
+            return new OverlayState(service.getEnabledOverlays(userId), service, userId);
+        } catch (RemoteException | RuntimeException e) {
+            e.printStackTrace();
+            // Fall back to asking for each package
+            return new OverlayState(null, service, userId);
+        } finally {
+            ThemesTrace.endSection();
+        }
+    }
+
+    public int getUserId() {
+        return mUserId;
+    }
+
+    @Override
+    public boolean isEnabled(String overlay) {
+        if (mEnabled != null) {
+            return mEnabled.contains(overlay);
+        }
+        try {
+            return mService.isEnabled(overlay, mUserId);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public String getEnabledOverlay(String[] overlays) {
+        String enabled = null;
+        for (String overlay : overlays) {
+            if (isEnabled(overlay)) {
+                enabled = overlay;
+            }
+        }
+        return enabled;
+    }
+
+    public int getEnabledCount(String[] overlays) {
+        int count = 0;
+        for (String overlay : overlays) {
+            if (isEnabled(overlay)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public String getThemeSwitch(Context context) {
+        for (int i = OverlayChangeSet.BACKGROUNDS.length - 1; i >= 0; i--) {
+            if (getEnabledCount(OverlayChangeSet.BACKGROUNDS[i]) > 0) {
+                return String.valueOf(i + 3);
+            }
+        }
+        int nightMode = mNightMode != -1 ? mNightMode : mService.getNightMode();
+        return nightMode == UiModeManager.MODE_NIGHT_YES ? "2" : "1";
+    }
+}
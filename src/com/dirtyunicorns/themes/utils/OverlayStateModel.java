@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OverlayStateModel {
+
+    // Overlay changes come in bursts, one broadcast per package
+    private static final long RELOAD_DELAY_MS = 200;
+
+    public interface Listener {
+        void onOverlayStateChanged(OverlayState state, int version);
+    }
+
+    private static OverlayStateModel sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    private volatile OverlayState mState;
+    private volatile int mVersion;
+    private boolean mReceiverRegistered;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            reload(RELOAD_DELAY_MS);
+        }
+    };
+
+    private final Runnable mReload = new Runnable() {
+        @Override
+        public void run() {
+            final OverlayState state = OverlayState.query(mContext);
+            mState = state;
+            final int version = ++mVersion;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : new ArrayList<>(mListeners)) {
+                        listener.onOverlayStateChanged(state, version);
+                    }
+                }
+            });
+        }
+    };
+
+    private OverlayStateModel(Context context) {
+        mContext = context.getApplicationContext();
+        HandlerThread thread = new HandlerThread("OverlayStateModel");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized OverlayStateModel getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new OverlayStateModel(context);
+        }
+        return sInstance;
+    }
+
+    // Latest snapshot, null until the first load has finished
+    public OverlayState getState() {
+        return mState;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    // Listeners are called on the main thread. The first one starts
+    // watching for overlay and package changes and triggers a load.
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        if (!mReceiverRegistered) {
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_OVERLAY_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            mContext.registerReceiver(mReceiver, filter);
+            mReceiverRegistered = true;
+            reload(0);
+        } else if (mState != null) {
+            listener.onOverlayStateChanged(mState, mVersion);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+        if (mListeners.isEmpty() && mReceiverRegistered) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiverRegistered = false;
+            // Nobody keeps the snapshot current any more
+            mState = null;
+        }
+    }
+
+    public void reload(long delay) {
+        mHandler.removeCallbacks(mReload);
+        mHandler.postDelayed(mReload, delay);
+    }
+}
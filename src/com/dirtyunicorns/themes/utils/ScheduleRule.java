@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import java.util.Calendar;
+
+public class ScheduleRule {
+
+    // Day bits follow Calendar.DAY_OF_WEEK, Sunday being the lowest bit
+    public static final int ALL_DAYS = 0x7f;
+    public static final int WEEKDAYS = getDayBit(Calendar.MONDAY) | getDayBit(Calendar.TUESDAY)
+            | getDayBit(Calendar.WEDNESDAY) | getDayBit(Calendar.THURSDAY)
+            | getDayBit(Calendar.FRIDAY);
+    public static final int WEEKEND = getDayBit(Calendar.SATURDAY) | getDayBit(Calendar.SUNDAY);
+
+    private long mId;
+    private int mDays;
+    private int mMinute;
+    private String mThemeName;
+
+    public ScheduleRule(int days, int minute, String themeName) {
+        this(-1, days, minute, themeName);
+    }
+
+    public ScheduleRule(long id, int days, int minute, String themeName) {
+        mId = id;
+        mDays = days;
+        mMinute = minute;
+        mThemeName = themeName;
+    }
+
+    public static int getDayBit(int dayOfWeek) {
+        return 1 << (dayOfWeek - Calendar.SUNDAY);
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public int getDays() {
+        return mDays;
+    }
+
+    public boolean hasDay(int dayOfWeek) {
+        return (mDays & getDayBit(dayOfWeek)) != 0;
+    }
+
+    // Minute of the day the rule switches themes at
+    public int getMinute() {
+        return mMinute;
+    }
+
+    // Name of the saved theme the rule restores
+    public String getThemeName() {
+        return mThemeName;
+    }
+}
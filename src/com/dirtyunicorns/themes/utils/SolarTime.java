@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+public class SolarTime {
+
+    private static final String TAG = "SolarTime";
+
+    // Sunrise and sunset from the NOAA solar position equations, worked out
+    // on the device from the last known location so no network is needed
+    private static final String PREF_SOLAR_LATITUDE = "theme_solar_latitude";
+    private static final String PREF_SOLAR_LONGITUDE = "theme_solar_longitude";
+
+    // Zenith of the sun's upper limb at sunrise and sunset, with refraction
+    private static final double ZENITH = Math.toRadians(90.833);
+    private static final long MINUTE = 60 * 1000;
+
+    // Per local day, keyed by year * 1000 + day of year
+    private static final LruCache<Integer, long[]> sCache = new LruCache<>(8);
+
+    public static boolean hasLocation(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .contains(PREF_SOLAR_LATITUDE);
+    }
+
+    // Stores the freshest location any provider has, without requesting one
+    public static boolean updateLocation(Context context) {
+        LocationManager locationManager = context.getSystemService(LocationManager.class);
+        if (locationManager == null) {
+            return hasLocation(context);
+        }
+        Location best = null;
+        try {
+            for (String provider : locationManager.getProviders(true)) {
+                Location location = locationManager.getLastKnownLocation(provider);
+                if (location != null && (best == null || location.getTime() > best.getTime())) {
+                    best = location;
+                }
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "No location permission, keeping the stored location", e);
+        }
+        if (best != null) {
+            PreferenceManager.getDefaultSharedPreferences(context).edit()
+                    .putFloat(PREF_SOLAR_LATITUDE, (float) best.getLatitude())
+                    .putFloat(PREF_SOLAR_LONGITUDE, (float) best.getLongitude())
+                    .apply();
+            sCache.evictAll();
+        }
+        return best != null || hasLocation(context);
+    }
+
+    // Next sunrise (or sunset) after now, -1 without a location or when the
+    // sun doesn't rise or set in the next few days
+    public static long getNext(Context context, boolean sunrise, long now) {
+        return find(context, sunrise, now, true);
+    }
+
+    // Last sunrise (or sunset) at or before now
+    public static long getPrevious(Context context, boolean sunrise, long now) {
+        return find(context, sunrise, now, false);
+    }
+
+    private static long find(Context context, boolean sunrise, long now, boolean next) {
+        Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(now);
+        // Neighbouring days too, far from the timezone's meridian an event
+        // can land on the next or previous local day
+        day.add(Calendar.DAY_OF_MONTH, -2);
+        long previous = -1;
+        for (int i = 0; i < 5; i++) {
+            long[] times = getTimes(context, day);
+            if (times == null) {
+                return -1;
+            }
+            long time = times[sunrise ? 0 : 1];
+            if (next && time > now) {
+                return time;
+            } else if (!next && time > 0 && time <= now) {
+                previous = time;
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return next ? -1 : previous;
+    }
+
+    private static long[] getTimes(Context context, Calendar day) {
+        int key = day.get(Calendar.YEAR) * 1000 + day.get(Calendar.DAY_OF_YEAR);
+        long[] times = sCache.get(key);
+        if (times != null) {
+            return times;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.contains(PREF_SOLAR_LATITUDE)) {
+            return null;
+        }
+        times = calculate(prefs.getFloat(PREF_SOLAR_LATITUDE, 0),
+                prefs.getFloat(PREF_SOLAR_LONGITUDE, 0), day);
+        sCache.put(key, times);
+        return times;
+    }
+
+    // Sunrise and sunset for the date of day, -1 for events that don't happen
+    static long[] calculate(double latitude, double longitude, Calendar day) {
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.clear();
+        utc.set(day.get(Calendar.YEAR), day.get(Calendar.MONTH),
+                day.get(Calendar.DAY_OF_MONTH));
+        long midnight = utc.getTimeInMillis();
+
+        // Fractional year at noon, in radians
+        double gamma = 2 * Math.PI / utc.getActualMaximum(Calendar.DAY_OF_YEAR)
+                * (utc.get(Calendar.DAY_OF_YEAR) - 1);
+        double equationOfTime = 229.18 * (0.000075 + 0.001868 * Math.cos(gamma)
+                - 0.032077 * Math.sin(gamma) - 0.014615 * Math.cos(2 * gamma)
+                - 0.040849 * Math.sin(2 * gamma));
+        double declination = 0.006918 - 0.399912 * Math.cos(gamma)
+                + 0.070257 * Math.sin(gamma) - 0.006758 * Math.cos(2 * gamma)
+                + 0.000907 * Math.sin(2 * gamma) - 0.002697 * Math.cos(3 * gamma)
+                + 0.00148 * Math.sin(3 * gamma);
+
+        double lat = Math.toRadians(latitude);
+        double cosHourAngle = Math.cos(ZENITH) / (Math.cos(lat) * Math.cos(declination))
+                - Math.tan(lat) * Math.tan(declination);
+        if (cosHourAngle < -1 || cosHourAngle > 1) {
+            // Midnight sun or polar night
+            return new long[] { -1, -1 };
+        }
+        double hourAngle = Math.toDegrees(Math.acos(cosHourAngle));
+        double sunrise = 720 - 4 * (longitude + hourAngle) - equationOfTime;
+        double sunset = 720 - 4 * (longitude - hourAngle) - equationOfTime;
+        return new long[] {
+                midnight + Math.round(sunrise * MINUTE),
+                midnight + Math.round(sunset * MINUTE)
+        };
+    }
+}
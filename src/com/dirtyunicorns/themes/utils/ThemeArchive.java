@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.utils.duUtils.getWallpaperBackupDir;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.text.TextUtils;
+import android.util.PathParser;
+
+import com.dirtyunicorns.themes.db.ThemeDatabase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ThemeArchive {
+
+    // Wallpapers are written first and the manifest last, so both export
+    // and import only ever hold a copy buffer, never a whole wallpaper.
+    private static final String MANIFEST_ENTRY = "manifest.json";
+    private static final String WALLPAPER_ENTRY_PREFIX = "wallpapers/";
+    private static final int ARCHIVE_VERSION = 1;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_THEMES = "themes";
+    private static final String KEY_THEME_NAME = "themeName";
+    private static final String KEY_THEME_DAY_NIGHT = "themeDayNight";
+    private static final String KEY_THEME_ACCENT = "themeAccent";
+    private static final String KEY_THEME_NIGHT_COLOR = "themeNightColor";
+    private static final String KEY_ACCENT_PICKER = "accentPicker";
+    private static final String KEY_THEME_SWITCH = "themeSwitch";
+    private static final String KEY_ADAPTATIVE_ICON_SHAPE = "adaptativeIconShape";
+    private static final String KEY_THEME_FONT = "themeFont";
+    private static final String KEY_THEME_ICON_SHAPE = "themeIconShape";
+    private static final String KEY_THEME_SB_ICONS = "themeSbIcons";
+    private static final String KEY_THEME_WP = "themeWp";
+    private static final String KEY_THEME_NAVBAR_STYLE = "themeNavbarStyle";
+    private static final String KEY_THEME_QSTILE_STYLE = "themeQSTileStyle";
+
+    public static int exportThemes(Context context, OutputStream out) throws IOException {
+        ThemesTrace.beginAction("ThemeArchive.export");
+        try {
+            return writeArchive(context, out);
+        } finally {
+            ThemesTrace.endAction();
+        }
+    }
+
+    // Imports at most up to limit saved themes, counting the ones already
+    // on the device
+    public static int importThemes(Context context, InputStream in, int limit)
+            throws IOException {
+        ThemesTrace.beginAction("ThemeArchive.import");
+        try {
+            return readArchive(context, in, limit);
+        } finally {
+            ThemesTrace.endAction();
+        }
+    }
+
+    private static int writeArchive(Context context, OutputStream out) throws IOException {
+        List<ThemeDbUtils> themes = new ThemeDatabase(context).getAllThemeDbUtils();
+        Map<String, String> wallpaperEntries = new HashMap<>();
+        JSONArray rows = new JSONArray();
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(out));
+        try {
+            for (ThemeDbUtils theme : themes) {
+                String themeWp = theme.getThemeWp();
+                if (themeWp != null && !wallpaperEntries.containsKey(themeWp)) {
+                    File wpFile = new File(themeWp);
+                    if (wpFile.isFile()) {
+                        String entryName = WALLPAPER_ENTRY_PREFIX + wallpaperEntries.size();
+                        zos.putNextEntry(new ZipEntry(entryName));
+                        copyFile(wpFile, zos);
+                        zos.closeEntry();
+                        wallpaperEntries.put(themeWp, entryName);
+                    }
+                }
+                rows.put(toJson(theme, wallpaperEntries.get(themeWp)));
+            }
+            byte[] manifestBytes;
+            ThemesTrace.beginSection("ThemeArchive.writeManifest");
+            try {
+                JSONObject manifest = new JSONObject();
+                manifest.put(KEY_VERSION, ARCHIVE_VERSION);
+                manifest.put(KEY_THEMES, rows);
+                manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+            } finally {
+                ThemesTrace.endSection();
+            }
+            zos.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            zos.write(manifestBytes);
+            zos.closeEntry();
+        } catch (JSONException e) {
+            throw new IOException("Unable to write theme manifest", e);
+        } finally {
+            zos.close();
+        }
+        return themes.size();
+    }
+
+    private static int readArchive(Context context, InputStream in, int limit)
+            throws IOException {
+        ThemeDatabase themeDatabase = new ThemeDatabase(context);
+        List<ThemeDbUtils> existingThemes = themeDatabase.getAllThemeDbUtils();
+        File wpDir = getWallpaperBackupDir(context);
+        Map<String, String> localWallpapers = hashExistingWallpapers(existingThemes);
+        Map<String, String> entryPaths = new HashMap<>();
+        List<File> createdFiles = new ArrayList<>();
+        String manifest = null;
+
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(in));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (MANIFEST_ENTRY.equals(name)) {
+                    manifest = readString(zis);
+                } else if (name.startsWith(WALLPAPER_ENTRY_PREFIX) && !entry.isDirectory()) {
+                    File tmpFile = File.createTempFile("import", null, wpDir);
+                    String hash;
+                    FileOutputStream fos = new FileOutputStream(tmpFile);
+                    try {
+                        hash = copyHashing(zis, fos);
+                    } finally {
+                        fos.close();
+                    }
+                    String localPath = localWallpapers.get(hash);
+                    if (localPath != null) {
+                        tmpFile.delete();
+                    } else {
+                        File wpFile = new File(wpDir, hash);
+                        if (!tmpFile.renameTo(wpFile)) {
+                            tmpFile.delete();
+                            throw new IOException("Unable to store wallpaper " + name);
+                        }
+                        createdFiles.add(wpFile);
+                        localPath = wpFile.getPath();
+                        localWallpapers.put(hash, localPath);
+                    }
+                    entryPaths.put(name, localPath);
+                }
+                zis.closeEntry();
+            }
+
+            if (manifest == null) {
+                throw new IOException("Theme archive has no manifest");
+            }
+            List<ThemeDbUtils> themes = parseManifest(manifest, entryPaths, existingThemes,
+                    limit - existingThemes.size());
+            themeDatabase.addThemeDbUtilsList(themes);
+
+            // Drop wallpapers that only belonged to skipped themes
+            Set<String> usedPaths = new HashSet<>();
+            for (ThemeDbUtils theme : themes) {
+                usedPaths.add(theme.getThemeWp());
+            }
+            for (File file : createdFiles) {
+                if (!usedPaths.contains(file.getPath())) {
+                    file.delete();
+                }
+            }
+            return themes.size();
+        } catch (IOException | RuntimeException e) {
+            for (File file : createdFiles) {
+                file.delete();
+            }
+            throw e;
+        } finally {
+            zis.close();
+        }
+    }
+
+    private static List<ThemeDbUtils> parseManifest(String manifest,
+            Map<String, String> entryPaths, List<ThemeDbUtils> existingThemes, int maxThemes)
+            throws IOException {
+        Set<String> themeNames = new HashSet<>();
+        for (ThemeDbUtils theme : existingThemes) {
+            themeNames.add(theme.getThemeName());
+        }
+        List<ThemeDbUtils> themes = new ArrayList<>();
+        try {
+            JSONArray rows = new JSONObject(manifest).getJSONArray(KEY_THEMES);
+            for (int i = 0; i < rows.length() && themes.size() < maxThemes; i++) {
+                JSONObject row = rows.getJSONObject(i);
+                String themeName = row.getString(KEY_THEME_NAME);
+                // Skip themes that are already saved on this device
+                if (TextUtils.isEmpty(themeName) || themeNames.contains(themeName)) {
+                    continue;
+                }
+                String themeWp = entryPaths.get(row.optString(KEY_THEME_WP, null));
+                ThemeDbUtils theme = new ThemeDbUtils(themeName,
+                        row.optString(KEY_THEME_DAY_NIGHT, null),
+                        row.getString(KEY_THEME_ACCENT),
+                        row.getString(KEY_THEME_NIGHT_COLOR),
+                        row.optString(KEY_ACCENT_PICKER, "default"),
+                        row.optString(KEY_THEME_SWITCH, "1"),
+                        row.optString(KEY_ADAPTATIVE_ICON_SHAPE, "1"),
+                        row.optString(KEY_THEME_FONT, "1"),
+                        row.getString(KEY_THEME_ICON_SHAPE),
+                        row.optString(KEY_THEME_SB_ICONS, "1"),
+                        themeWp,
+                        row.optString(KEY_THEME_NAVBAR_STYLE, "default"),
+                        row.optString(KEY_THEME_QSTILE_STYLE, "com.android.systemui.qstile.default"));
+                if (isValid(theme)) {
+                    themeNames.add(themeName);
+                    themes.add(theme);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException("Invalid theme manifest", e);
+        }
+        return themes;
+    }
+
+    // The restore cards parse these as they bind, a broken row would crash
+    // the screen for every saved theme
+    private static boolean isValid(ThemeDbUtils theme) {
+        if (!"true".equals(theme.getThemeDayOrNight())
+                && !"false".equals(theme.getThemeDayOrNight())) {
+            return false;
+        }
+        if (TextUtils.isEmpty(theme.getThemeWp())) {
+            return false;
+        }
+        // Restoring enables these overlays, only the known ones are allowed
+        if (!OverlayCategory.ACCENT.isValidValue(theme.getAccentPicker())
+                || !OverlayCategory.NAVBAR.isValidValue(theme.getThemeNavbarStyle())
+                || !OverlayCategory.QS_TILE_STYLE.isValidValue(theme.getThemeQSTileStyle())) {
+            return false;
+        }
+        try {
+            int themeSwitch = Integer.parseInt(theme.getThemeSwitch());
+            if (themeSwitch < 1 || themeSwitch > 9) {
+                return false;
+            }
+            Color.parseColor(theme.getThemeAccent());
+            Color.parseColor(theme.getThemeNightColor());
+            Integer.parseInt(theme.getThemeFont());
+            Integer.parseInt(theme.getThemeSbIcons());
+            return !TextUtils.isEmpty(theme.getThemeIconShape())
+                    && PathParser.createPathFromPathData(theme.getThemeIconShape()) != null;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static JSONObject toJson(ThemeDbUtils theme, String wpEntry)
+            throws JSONException {
+        JSONObject row = new JSONObject();
+        row.put(KEY_THEME_NAME, theme.getThemeName());
+        row.put(KEY_THEME_DAY_NIGHT, theme.getThemeDayOrNight());
+        row.put(KEY_THEME_ACCENT, theme.getThemeAccent());
+        row.put(KEY_THEME_NIGHT_COLOR, theme.getThemeNightColor());
+        row.put(KEY_ACCENT_PICKER, theme.getAccentPicker());
+        row.put(KEY_THEME_SWITCH, theme.getThemeSwitch());
+        row.put(KEY_ADAPTATIVE_ICON_SHAPE, theme.getAdaptiveIconShape());
+        row.put(KEY_THEME_FONT, theme.getThemeFont());
+        row.put(KEY_THEME_ICON_SHAPE, theme.getThemeIconShape());
+        row.put(KEY_THEME_SB_ICONS, theme.getThemeSbIcons());
+        row.put(KEY_THEME_WP, wpEntry);
+        row.put(KEY_THEME_NAVBAR_STYLE, theme.getThemeNavbarStyle());
+        row.put(KEY_THEME_QSTILE_STYLE, theme.getThemeQSTileStyle());
+        return row;
+    }
+
+    private static Map<String, String> hashExistingWallpapers(List<ThemeDbUtils> themes)
+            throws IOException {
+        Map<String, String> hashes = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (ThemeDbUtils theme : themes) {
+            String themeWp = theme.getThemeWp();
+            if (themeWp == null || !seen.add(themeWp)) {
+                continue;
+            }
+            File wpFile = new File(themeWp);
+            if (wpFile.isFile()) {
+                hashes.put(copyFile(wpFile, null), themeWp);
+            }
+        }
+        return hashes;
+    }
+
+    private static String copyFile(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return copyHashing(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String copyHashing(InputStream in, OutputStream out) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            if (out != null) {
+                out.write(buffer, 0, read);
+            }
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            baos.write(buffer, 0, read);
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
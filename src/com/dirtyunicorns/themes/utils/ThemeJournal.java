@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Themes.PREF_THEME_SWITCH;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.UserHandle;
+import android.util.SparseArray;
+
+import java.util.Map;
+
+public class ThemeJournal {
+
+    // Holds the values a change set replaced, keyed like the theme
+    // preferences with the user id in front, so the last apply can be
+    // undone for every user it touched. The wallpaper isn't per user and
+    // is stored once.
+    private static final String JOURNAL_PREFS = "theme_journal";
+    private static final String KEY_WALLPAPER = "wallpaper";
+    private static final String KEY_USERS = "users";
+    private static final char USER_SEPARATOR = '/';
+
+    private static SharedPreferences getJournal(Context context) {
+        return context.getSharedPreferences(JOURNAL_PREFS, Context.MODE_PRIVATE);
+    }
+
+    // One previous change set per user, in the order of the users' states
+    static void record(Context context, OverlayChangeSet[] previous, int[] userIds) {
+        SharedPreferences.Editor editor = getJournal(context).edit().clear();
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < previous.length; i++) {
+            for (Map.Entry<OverlayCategory, String> entry
+                    : previous[i].getCategories().entrySet()) {
+                editor.putString(getUserKey(userIds[i], entry.getKey().getKey()),
+                        entry.getValue());
+            }
+            // The background overlays behind the theme switch are per user
+            if (previous[i].getThemeSwitch() != null) {
+                editor.putString(getUserKey(userIds[i], PREF_THEME_SWITCH),
+                        previous[i].getThemeSwitch());
+            }
+            if (users.length() > 0) {
+                users.append(',');
+            }
+            users.append(userIds[i]);
+        }
+        if (previous.length > 0 && previous[0].getWallpaper() != null) {
+            editor.putString(KEY_WALLPAPER, previous[0].getWallpaper());
+        }
+        editor.putString(KEY_USERS, users.toString());
+        // Written synchronously, the journal has to exist before any overlay changes
+        editor.commit();
+    }
+
+    public static boolean hasEntry(Context context) {
+        return !getJournal(context).getAll().isEmpty();
+    }
+
+    public static boolean revert(Context context, OverlayService service) {
+        SharedPreferences journal = getJournal(context);
+        Map<String, ?> entries = journal.getAll();
+        if (entries.isEmpty()) {
+            return false;
+        }
+        int[] userIds = parseUsers(journal.getString(KEY_USERS, ""));
+        if (userIds == null) {
+            journal.edit().clear().commit();
+            return false;
+        }
+        // The calling user goes last and is the only one written to the
+        // preferences, the other users only get their overlays back
+        int last = userIds.length - 1;
+        for (int i = 0; i < userIds.length; i++) {
+            if (userIds[i] == UserHandle.myUserId()) {
+                last = i;
+            }
+        }
+        SparseArray<OverlayChangeSet> changeSets = new SparseArray<>();
+        for (int userId : userIds) {
+            changeSets.put(userId, new OverlayChangeSet().setUsers(userId));
+        }
+        OverlayChangeSet global = changeSets.get(userIds[last]);
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            String value = (String) entry.getValue();
+            int separator = key.indexOf(USER_SEPARATOR);
+            if (KEY_WALLPAPER.equals(key)) {
+                global.setWallpaper(value);
+            } else if (separator > 0) {
+                OverlayChangeSet changeSet = changeSets.get(
+                        parseUser(key.substring(0, separator)));
+                String userKey = key.substring(separator + 1);
+                OverlayCategory category = OverlayCategory.fromKey(userKey);
+                if (changeSet == null) {
+                    continue;
+                } else if (PREF_THEME_SWITCH.equals(userKey)) {
+                    changeSet.setThemeSwitch(value);
+                } else if (category != null) {
+                    changeSet.setCategory(category, value);
+                }
+            }
+        }
+        journal.edit().clear().commit();
+        boolean success = true;
+        for (int i = 0; i < userIds.length; i++) {
+            if (i != last) {
+                success &= commit(context, service, changeSets.get(userIds[i]), false);
+            }
+        }
+        return commit(context, service, global, true) && success;
+    }
+
+    private static boolean commit(Context context, OverlayService service,
+            OverlayChangeSet changeSet, boolean preferences) {
+        return changeSet.commit(context, service, changeSet.queryStates(service), false,
+                preferences);
+    }
+
+    private static String getUserKey(int userId, String key) {
+        return String.valueOf(userId) + USER_SEPARATOR + key;
+    }
+
+    private static int parseUser(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return UserHandle.USER_NULL;
+        }
+    }
+
+    private static int[] parseUsers(String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        String[] users = value.split(",");
+        int[] userIds = new int[users.length];
+        try {
+            for (int i = 0; i < users.length; i++) {
+                userIds[i] = Integer.parseInt(users[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return userIds;
+    }
+}
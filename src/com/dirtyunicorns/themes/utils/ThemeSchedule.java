@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.content.Context;
+
+import com.dirtyunicorns.themes.db.ThemeDatabase;
+
+import java.util.List;
+
+public class ThemeSchedule {
+
+    // The rules' timeline, kept framework free in WeeklyTimeline
+    private final WeeklyTimeline mTimeline;
+
+    public ThemeSchedule(List<ScheduleRule> rules) {
+        mTimeline = new WeeklyTimeline(rules);
+    }
+
+    public static ThemeSchedule load(Context context) {
+        return new ThemeSchedule(new ThemeDatabase(context).getAllScheduleRules());
+    }
+
+    public boolean isEmpty() {
+        return mTimeline.isEmpty();
+    }
+
+    // First rule strictly after the current minute, wrapping to next week
+    public ThemeScheduler.Transition getNextTransition(long now) {
+        return getTransition(mTimeline.getNext(now));
+    }
+
+    // Last rule at or before the current minute, wrapping to last week.
+    // Its theme is the one that should be active now.
+    public ThemeScheduler.Transition getPreviousTransition(long now) {
+        return getTransition(mTimeline.getPrevious(now));
+    }
+
+    private static ThemeScheduler.Transition getTransition(WeeklyTimeline.Trigger trigger) {
+        return trigger != null ? new ThemeScheduler.Transition(trigger.getTime(), true, null,
+                trigger.getThemeName()) : null;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_END_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_START_TIME;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_END_THEME_VALUE;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_REPEAT_DAILY;
+import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHEDULED_START_THEME_VALUE;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+
+import androidx.preference.PreferenceManager;
+
+import com.dirtyunicorns.themes.receivers.ThemesBootReceiver;
+import com.dirtyunicorns.themes.receivers.ThemesEndReceiver;
+import com.dirtyunicorns.themes.receivers.ThemesStartReceiver;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class ThemeScheduler {
+
+    // Start and end themes are one timeline, only the next transition on
+    // it has an alarm and every fired transition arms the one after it
+    private static final String PREF_LAST_TRANSITION = "theme_schedule_last_transition";
+
+    // Saved theme a weekday rule restores, the start/end pair reads its prefs
+    public static final String EXTRA_THEME_NAME = "theme_name";
+
+    // Schedule mode turning the start theme on at sunset and the end theme
+    // on at sunrise
+    public static final String SCHEDULE_SOLAR = "3";
+
+    public static class Transition {
+
+        private final long mTime;
+        private final boolean mStart;
+        private final String mThemeValue;
+        private final String mThemeName;
+
+        Transition(long time, boolean start) {
+            this(time, start, null, null);
+        }
+
+        Transition(long time, boolean start, String themeValue, String themeName) {
+            mTime = time;
+            mStart = start;
+            mThemeValue = themeValue;
+            mThemeName = themeName;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public boolean isStart() {
+            return mStart;
+        }
+
+        public String getThemeValue() {
+            return mThemeValue;
+        }
+
+        // Set for weekday rules instead of a theme value
+        public String getThemeName() {
+            return mThemeName;
+        }
+    }
+
+    // Upcoming transitions in firing order. Daily schedules recur at the
+    // picked time of day, others fire once at the picked time.
+    public static List<Transition> getTimeline(Context context, long now) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean repeat = prefs.getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false);
+        long lastTransition = prefs.getLong(PREF_LAST_TRANSITION, 0);
+        List<Transition> timeline = new ArrayList<>();
+        if (isSolar(prefs)) {
+            if (prefs.getString(PREF_THEME_SCHEDULED_START_THEME_VALUE, null) != null) {
+                addSolarTransition(timeline, SolarTime.getNext(context, false, now), true);
+            }
+            if (prefs.getString(PREF_THEME_SCHEDULED_END_THEME_VALUE, null) != null) {
+                addSolarTransition(timeline, SolarTime.getNext(context, true, now), false);
+            }
+        } else {
+            addTransition(timeline, prefs.getLong(PREF_ALARM_START_TIME, 0), true, repeat,
+                    now, lastTransition);
+            addTransition(timeline, prefs.getLong(PREF_ALARM_END_TIME, 0), false, repeat,
+                    now, lastTransition);
+        }
+        Transition rule = ThemeSchedule.load(context).getNextTransition(now);
+        if (rule != null) {
+            timeline.add(rule);
+        }
+        Collections.sort(timeline, new Comparator<Transition>() {
+            @Override
+            public int compare(Transition t1, Transition t2) {
+                return Long.compare(t1.mTime, t2.mTime);
+            }
+        });
+        return timeline;
+    }
+
+    private static void addTransition(List<Transition> timeline, long time, boolean start,
+            boolean repeat, long now, long lastTransition) {
+        if (time <= 0) {
+            return;
+        }
+        if (repeat) {
+            timeline.add(new Transition(getNextDailyTime(time, now), start));
+        } else if (time > lastTransition) {
+            // A one time transition that is already due fires right away
+            timeline.add(new Transition(Math.max(time, now), start));
+        }
+    }
+
+    // The transition that should be in effect now, the latest one at or
+    // before now with its theme filled in. Null without a schedule.
+    public static Transition getActiveTransition(Context context, long now) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String startValue = prefs.getString(PREF_THEME_SCHEDULED_START_THEME_VALUE, null);
+        String endValue = prefs.getString(PREF_THEME_SCHEDULED_END_THEME_VALUE, null);
+        Transition active = null;
+        if (isSolar(prefs)) {
+            active = getLatest(active, SolarTime.getPrevious(context, false, now), true,
+                    startValue);
+            active = getLatest(active, SolarTime.getPrevious(context, true, now), false,
+                    endValue);
+        } else {
+            boolean repeat = prefs.getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false);
+            active = getLatest(active, getPreviousTime(prefs.getLong(PREF_ALARM_START_TIME, 0),
+                    repeat, now), true, startValue);
+            active = getLatest(active, getPreviousTime(prefs.getLong(PREF_ALARM_END_TIME, 0),
+                    repeat, now), false, endValue);
+        }
+        Transition rule = ThemeSchedule.load(context).getPreviousTransition(now);
+        if (rule != null && (active == null || rule.mTime > active.mTime)) {
+            active = rule;
+        }
+        return active;
+    }
+
+    private static Transition getLatest(Transition latest, long time, boolean start,
+            String themeValue) {
+        if (time <= 0 || themeValue == null || (latest != null && latest.mTime >= time)) {
+            return latest;
+        }
+        return new Transition(time, start, themeValue, null);
+    }
+
+    private static long getPreviousTime(long time, boolean repeat, long now) {
+        if (time <= 0) {
+            return -1;
+        } else if (!repeat) {
+            return time <= now ? time : -1;
+        }
+        Calendar previous = Calendar.getInstance();
+        previous.setTimeInMillis(getNextDailyTime(time, now));
+        previous.add(Calendar.DAY_OF_MONTH, -1);
+        return previous.getTimeInMillis();
+    }
+
+    public static long getLastTransition(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(PREF_LAST_TRANSITION, 0);
+    }
+
+    private static void addSolarTransition(List<Transition> timeline, long time,
+            boolean start) {
+        if (time > 0) {
+            timeline.add(new Transition(time, start));
+        }
+    }
+
+    public static boolean isSolar(SharedPreferences prefs) {
+        return SCHEDULE_SOLAR.equals(prefs.getString(PREF_THEME_SCHEDULE, "1"));
+    }
+
+    // Sunset and sunrise come back every day on their own
+    public static boolean isRepeating(SharedPreferences prefs) {
+        return isSolar(prefs) || prefs.getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false);
+    }
+
+    // Calendar keeps the wall clock time across DST changes, unlike a
+    // fixed INTERVAL_DAY repeat
+    private static long getNextDailyTime(long time, long now) {
+        Calendar picked = Calendar.getInstance();
+        picked.setTimeInMillis(time);
+        Calendar next = Calendar.getInstance();
+        next.setTimeInMillis(now);
+        next.set(Calendar.HOUR_OF_DAY, picked.get(Calendar.HOUR_OF_DAY));
+        next.set(Calendar.MINUTE, picked.get(Calendar.MINUTE));
+        next.set(Calendar.SECOND, 0);
+        next.set(Calendar.MILLISECOND, 0);
+        if (next.getTimeInMillis() <= now) {
+            next.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return next.getTimeInMillis();
+    }
+
+    // Arms a single alarm for the next transition, replacing any other
+    public static void schedule(Context context) {
+        AlarmManager alarmManager = context.getSystemService(AlarmManager.class);
+        if (alarmManager == null) {
+            return;
+        }
+        alarmManager.cancel(getPendingIntent(context, true, null));
+        alarmManager.cancel(getPendingIntent(context, false, null));
+
+        List<Transition> timeline;
+        ThemesTrace.beginSection("ThemeScheduler.getTimeline");
+        try {
+            timeline = getTimeline(context, System.currentTimeMillis());
+        } finally {
+            ThemesTrace.endSection();
+        }
+        // Only a schedule with something left to fire needs to be looked
+        // at again after a reboot
+        setBootReceiverEnabled(context, !timeline.isEmpty());
+        if (timeline.isEmpty()) {
+            return;
+        }
+        arm(context, alarmManager, timeline.get(0));
+    }
+
+    private static void arm(Context context, AlarmManager alarmManager, Transition next) {
+        if (next.mThemeName != null) {
+            // Rules can fire without a start time picked, which is what
+            // normally enables the start receiver
+            context.getPackageManager().setComponentEnabledSetting(
+                    new ComponentName(context, ThemesStartReceiver.class),
+                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
+        }
+        alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next.mTime,
+                getPendingIntent(context, next.mStart, next.mThemeName));
+    }
+
+    // Called by the receivers once a transition fired
+    public static void onTransition(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit().putLong(PREF_LAST_TRANSITION, System.currentTimeMillis()).commit();
+        if (isSolar(prefs)) {
+            // Follows the device around if it moved since the last one
+            SolarTime.updateLocation(context);
+        }
+        schedule(context);
+    }
+
+    // Drops the start and end themes' alarms, weekly rules stay armed
+    public static void clear(Context context) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(PREF_LAST_TRANSITION)
+                .apply();
+        Transition rule = ThemeSchedule.load(context).getNextTransition(
+                System.currentTimeMillis());
+        setBootReceiverEnabled(context, rule != null);
+        AlarmManager alarmManager = context.getSystemService(AlarmManager.class);
+        if (rule != null && alarmManager != null) {
+            arm(context, alarmManager, rule);
+        }
+    }
+
+    private static void setBootReceiverEnabled(Context context, boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, ThemesBootReceiver.class), enabled
+                        ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private static PendingIntent getPendingIntent(Context context, boolean start,
+            String themeName) {
+        Intent intent = new Intent(context, start ? ThemesStartReceiver.class
+                : ThemesEndReceiver.class);
+        if (themeName != null) {
+            intent.putExtra(EXTRA_THEME_NAME, themeName);
+        }
+        // Extras don't take part in matching, so the start intent is the
+        // same one with or without a rule theme and updating swaps it
+        return PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
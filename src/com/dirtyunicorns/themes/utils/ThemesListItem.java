@@ -16,6 +16,9 @@
 
 package com.dirtyunicorns.themes.utils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ThemesListItem {
 
     private String mThemeName;
@@ -36,6 +39,20 @@ public class ThemesListItem {
         //
     }
 
+    // Restore cards for the saved themes, newest first
+    public static List<ThemesListItem> fromSavedThemes(List<ThemeDbUtils> themes) {
+        List<ThemesListItem> items = new ArrayList<>(themes.size());
+        for (int i = themes.size() - 1; i >= 0; i--) {
+            ThemeDbUtils theme = themes.get(i);
+            items.add(new ThemesListItem(theme.getThemeName(), theme.getThemeDayOrNight(),
+                    theme.getThemeAccent(), theme.getThemeNightColor(), theme.getAccentPicker(),
+                    theme.getThemeSwitch(), theme.getAdaptiveIconShape(), theme.getThemeFont(),
+                    theme.getThemeIconShape(), theme.getThemeSbIcons(), theme.getThemeWp(),
+                    theme.getThemeNavbarStyle(), theme.getThemeQSTileStyle()));
+        }
+        return items;
+    }
+
     public ThemesListItem(String themeName, String themeDayOrNight, String themeAccent, String themeNightColor,
                 String accentPicker, String themeSwitch, String adaptativeIconShape, String themeFont,
                 String themeIconShape, String themeSbIcons, String themeWp, String themeNavbarStyle,
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ThemesMetrics {
+
+    // Latency histograms and counters kept in memory for the life of the
+    // process, printed by dumpsys through ThemesMetricsProvider. Every
+    // trace section is timed, so anything traced shows up here too.
+    private static final int BUCKETS = 24;
+
+    private static final Map<String, Histogram> sHistograms = new TreeMap<>();
+    private static final Map<String, long[]> sCounters = new TreeMap<>();
+
+    private static class Histogram {
+        // Bucket i holds durations below 2^i microseconds
+        final long[] mBuckets = new long[BUCKETS];
+        long mCount;
+        long mTotalMicros;
+        long mMaxMicros;
+
+        void add(long micros) {
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets[Math.min(bucket, BUCKETS - 1)]++;
+            mCount++;
+            mTotalMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+        }
+
+        // Upper bound of the bucket the given fraction of samples falls in
+        long getPercentileMicros(float fraction) {
+            long target = (long) Math.ceil(mCount * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    return Math.min(1L << i, mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+    }
+
+    public static void recordLatency(String name, long durationNanos) {
+        long micros = Math.max(durationNanos / 1000, 0);
+        synchronized (sHistograms) {
+            Histogram histogram = sHistograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                sHistograms.put(name, histogram);
+            }
+            histogram.add(micros);
+        }
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long value) {
+        synchronized (sCounters) {
+            long[] counter = sCounters.get(name);
+            if (counter == null) {
+                counter = new long[1];
+                sCounters.put(name, counter);
+            }
+            counter[0] += value;
+        }
+    }
+
+    public static void recordCacheLookup(String cache, boolean hit) {
+        increment("cache " + cache + (hit ? " hits" : " misses"));
+    }
+
+    public static void reset() {
+        synchronized (sHistograms) {
+            sHistograms.clear();
+        }
+        synchronized (sCounters) {
+            sCounters.clear();
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Latency (ms): count avg p50 p90 p99 max");
+        synchronized (sHistograms) {
+            for (Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                pw.println(String.format("  %s: %d %s %s %s %s %s", entry.getKey(),
+                        histogram.mCount,
+                        formatMillis(histogram.mTotalMicros / histogram.mCount),
+                        formatMillis(histogram.getPercentileMicros(0.5f)),
+                        formatMillis(histogram.getPercentileMicros(0.9f)),
+                        formatMillis(histogram.getPercentileMicros(0.99f)),
+                        formatMillis(histogram.mMaxMicros)));
+            }
+        }
+        pw.println("Counters:");
+        synchronized (sCounters) {
+            for (Map.Entry<String, long[]> entry : sCounters.entrySet()) {
+                pw.println("  " + entry.getKey() + ": " + entry.getValue()[0]);
+            }
+            pw.println("Cache hit rates:");
+            Map<String, long[]> caches = new TreeMap<>();
+            for (Map.Entry<String, long[]> entry : sCounters.entrySet()) {
+                String key = entry.getKey();
+                boolean hits = key.endsWith(" hits");
+                if (!key.startsWith("cache ") || !(hits || key.endsWith(" misses"))) {
+                    continue;
+                }
+                String cache = key.substring("cache ".length(), key.lastIndexOf(' '));
+                long[] lookups = caches.get(cache);
+                if (lookups == null) {
+                    lookups = new long[2];
+                    caches.put(cache, lookups);
+                }
+                lookups[hits ? 0 : 1] = entry.getValue()[0];
+            }
+            for (Map.Entry<String, long[]> entry : caches.entrySet()) {
+                long[] lookups = entry.getValue();
+                pw.println(String.format("  %s: %.1f%% of %d", entry.getKey(),
+                        100f * lookups[0] / (lookups[0] + lookups[1]),
+                        lookups[0] + lookups[1]));
+            }
+        }
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format("%.2f", micros / 1000f);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ThemesTrace {
+
+    // Sections and counters end up in systrace/perfetto captures once app
+    // tracing is on for the package, e.g. atrace -a com.dirtyunicorns.themes.
+    // Section durations also go to ThemesMetrics.
+    private static final String COUNTER_BINDER_CALLS = "DUThemes binder calls";
+
+    // Binder call counters of the thread's open actions, innermost last.
+    // Actions on other threads keep their own count.
+    private static final ThreadLocal<ArrayDeque<AtomicInteger>> sActions =
+            new ThreadLocal<ArrayDeque<AtomicInteger>>() {
+                @Override
+                protected ArrayDeque<AtomicInteger> initialValue() {
+                    return new ArrayDeque<>();
+                }
+            };
+
+    // Open sections of the thread with their start times, innermost last
+    private static final ThreadLocal<ArrayDeque<Object[]>> sSections =
+            new ThreadLocal<ArrayDeque<Object[]>>() {
+                @Override
+                protected ArrayDeque<Object[]> initialValue() {
+                    return new ArrayDeque<>();
+                }
+            };
+
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+        sSections.get().addLast(new Object[] { name, SystemClock.elapsedRealtimeNanos() });
+    }
+
+    public static void endSection() {
+        Object[] section = sSections.get().pollLast();
+        if (section != null) {
+            ThemesMetrics.recordLatency((String) section[0],
+                    SystemClock.elapsedRealtimeNanos() - (long) section[1]);
+        }
+        Trace.endSection();
+    }
+
+    // Apply, backup and restore, each gets its own binder counter. An
+    // action started inside another one is counted on its own.
+    public static void beginAction(String name) {
+        sActions.get().addLast(new AtomicInteger());
+        Trace.setCounter(COUNTER_BINDER_CALLS, 0);
+        beginSection(name);
+    }
+
+    public static void endAction() {
+        Object[] section = sSections.get().peekLast();
+        AtomicInteger binderCalls = sActions.get().pollLast();
+        if (section != null && binderCalls != null) {
+            ThemesMetrics.add(section[0] + " binder calls", binderCalls.get());
+        }
+        endSection();
+    }
+
+    // Lets a worker thread count its binder calls towards the action of
+    // the thread that hands it the task
+    public static <T> Callable<T> inAction(final Callable<T> task) {
+        final AtomicInteger binderCalls = sActions.get().peekLast();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (binderCalls == null) {
+                    return task.call();
+                }
+                ArrayDeque<AtomicInteger> actions = sActions.get();
+                actions.addLast(binderCalls);
+                try {
+                    return task.call();
+                } finally {
+                    actions.pollLast();
+                }
+            }
+        };
+    }
+
+    public static void countBinderCall() {
+        AtomicInteger binderCalls = sActions.get().peekLast();
+        if (binderCalls != null) {
+            Trace.setCounter(COUNTER_BINDER_CALLS, binderCalls.incrementAndGet());
+        }
+        ThemesMetrics.increment("binder calls");
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.WallpaperManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.DisplayMetrics;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class WallpaperApplier {
+
+    private static final int MSG_APPLY = 1;
+
+    private static final String PREF_APPLIED_WALLPAPER = "applied_wallpaper";
+    private static final String PREF_APPLIED_WALLPAPER_ID = "applied_wallpaper_id";
+
+    private static WallpaperApplier sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // Bumped for every request so a decode that finishes after a newer
+    // request came in is dropped instead of being set on top of it
+    private volatile int mGeneration;
+
+    private WallpaperApplier(Context context) {
+        mContext = context.getApplicationContext();
+        HandlerThread thread = new HandlerThread("WallpaperApplier");
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_APPLY) {
+                    applyWallpaper((String) msg.obj, msg.arg1);
+                }
+            }
+        };
+    }
+
+    public static synchronized WallpaperApplier getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WallpaperApplier(context);
+        }
+        return sInstance;
+    }
+
+    public void apply(String path) {
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        // Only the latest pending request is worth applying
+        mHandler.removeMessages(MSG_APPLY);
+        mHandler.obtainMessage(MSG_APPLY, ++mGeneration, 0, path).sendToTarget();
+    }
+
+    // True when the backup at path is what we last set and nothing else has
+    // replaced the system wallpaper since
+    public static boolean isApplied(Context context, String path) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (path == null || !path.equals(prefs.getString(PREF_APPLIED_WALLPAPER, null))) {
+            return false;
+        }
+        int wallpaperId = WallpaperManager.getInstance(context)
+                .getWallpaperId(WallpaperManager.FLAG_SYSTEM);
+        return wallpaperId == prefs.getInt(PREF_APPLIED_WALLPAPER_ID, -1);
+    }
+
+    public static String getAppliedWallpaper(Context context) {
+        String path = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_APPLIED_WALLPAPER, null);
+        return isApplied(context, path) ? path : null;
+    }
+
+    private void setApplied(WallpaperManager wallpaperManager, String path) {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_APPLIED_WALLPAPER, path)
+                .putInt(PREF_APPLIED_WALLPAPER_ID,
+                        wallpaperManager.getWallpaperId(WallpaperManager.FLAG_SYSTEM))
+                .apply();
+    }
+
+    private void applyWallpaper(String path, int generation) {
+        WallpaperManager wallpaperManager = WallpaperManager.getInstance(mContext);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+
+        int width = wallpaperManager.getDesiredMinimumWidth();
+        int height = wallpaperManager.getDesiredMinimumHeight();
+        if (width <= 0 || height <= 0) {
+            DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+        }
+
+        try {
+            if (options.outWidth <= width && options.outHeight <= height) {
+                // Already screen sized, let the wallpaper service read the file
+                InputStream in = new BufferedInputStream(new FileInputStream(path));
+                try {
+                    if (generation == mGeneration) {
+                        ThemesTrace.beginSection("wallpaper setStream");
+                        try {
+                            ThemesTrace.countBinderCall();
+                            wallpaperManager.setStream(in, null, false,
+                                    WallpaperManager.FLAG_SYSTEM);
+                        } finally {
+                            ThemesTrace.endSection();
+                        }
+                        setApplied(wallpaperManager, path);
+                    }
+                } finally {
+                    in.close();
+                }
+                return;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = getSampleSize(options.outWidth, options.outHeight,
+                    width, height);
+            ThemesTrace.beginSection("wallpaper decode");
+            Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+            ThemesTrace.endSection();
+            if (bitmap == null) {
+                return;
+            }
+            float scale = Math.max((float) width / bitmap.getWidth(),
+                    (float) height / bitmap.getHeight());
+            if (scale < 1f) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                        Math.round(bitmap.getWidth() * scale),
+                        Math.round(bitmap.getHeight() * scale), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+            }
+            if (generation == mGeneration) {
+                ThemesTrace.beginSection("wallpaper setBitmap");
+                try {
+                    ThemesTrace.countBinderCall();
+                    wallpaperManager.setBitmap(bitmap, null, false, WallpaperManager.FLAG_SYSTEM);
+                } finally {
+                    ThemesTrace.endSection();
+                }
+                setApplied(wallpaperManager, path);
+            }
+            bitmap.recycle();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int getSampleSize(int srcWidth, int srcHeight, int width, int height) {
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= width && srcHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
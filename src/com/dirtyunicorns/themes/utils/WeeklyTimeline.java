@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class WeeklyTimeline {
+
+    // Weekly rules as a sorted array of minutes into the week, so the
+    // active rule and the next trigger are a binary search. Plain Java
+    // with no framework dependencies, the host benchmark runs it as is.
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+
+    public static class Trigger {
+
+        private final long mTime;
+        private final String mThemeName;
+
+        Trigger(long time, String themeName) {
+            mTime = time;
+            mThemeName = themeName;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public String getThemeName() {
+            return mThemeName;
+        }
+    }
+
+    private final int[] mWeekMinutes;
+    private final String[] mThemeNames;
+
+    public WeeklyTimeline(List<ScheduleRule> rules) {
+        // Rules added later win when two land on the same minute
+        TreeMap<Integer, String> entries = new TreeMap<>();
+        for (ScheduleRule rule : rules) {
+            for (int day = 0; day < 7; day++) {
+                if ((rule.getDays() & (1 << day)) != 0) {
+                    entries.put(day * MINUTES_PER_DAY + rule.getMinute(), rule.getThemeName());
+                }
+            }
+        }
+        mWeekMinutes = new int[entries.size()];
+        mThemeNames = new String[entries.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> entry : entries.entrySet()) {
+            mWeekMinutes[i] = entry.getKey();
+            mThemeNames[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mWeekMinutes.length == 0;
+    }
+
+    // First rule strictly after the current minute, wrapping to next week
+    public Trigger getNext(long now) {
+        if (isEmpty()) {
+            return null;
+        }
+        int weekMinute = getWeekMinute(now);
+        int index = Arrays.binarySearch(mWeekMinutes, weekMinute);
+        index = index >= 0 ? index + 1 : -index - 1;
+        if (index < mWeekMinutes.length) {
+            return getTrigger(now, weekMinute, mWeekMinutes[index], index);
+        }
+        return getTrigger(now, weekMinute, mWeekMinutes[0] + MINUTES_PER_WEEK, 0);
+    }
+
+    // Last rule at or before the current minute, wrapping to last week.
+    // Its theme is the one that should be active now.
+    public Trigger getPrevious(long now) {
+        if (isEmpty()) {
+            return null;
+        }
+        int weekMinute = getWeekMinute(now);
+        int index = Arrays.binarySearch(mWeekMinutes, weekMinute);
+        index = index >= 0 ? index : -index - 2;
+        if (index >= 0) {
+            return getTrigger(now, weekMinute, mWeekMinutes[index], index);
+        }
+        index = mWeekMinutes.length - 1;
+        return getTrigger(now, weekMinute, mWeekMinutes[index] - MINUTES_PER_WEEK, index);
+    }
+
+    private Trigger getTrigger(long now, int weekMinute, int targetMinute, int index) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(now);
+        time.add(Calendar.DAY_OF_MONTH, Math.floorDiv(targetMinute, MINUTES_PER_DAY)
+                - weekMinute / MINUTES_PER_DAY);
+        int minute = Math.floorMod(targetMinute, MINUTES_PER_DAY);
+        time.set(Calendar.HOUR_OF_DAY, minute / 60);
+        time.set(Calendar.MINUTE, minute % 60);
+        time.set(Calendar.SECOND, 0);
+        time.set(Calendar.MILLISECOND, 0);
+        return new Trigger(time.getTimeInMillis(), mThemeNames[index]);
+    }
+
+    private static int getWeekMinute(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return (calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) * MINUTES_PER_DAY
+                + calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+    }
+}
@@ -29,22 +29,20 @@ import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_THEME_SCHE
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_START_TIME;
 import static com.dirtyunicorns.themes.Schedule.ScheduleFragment.PREF_ALARM_END_TIME;
 
-import android.app.Activity;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
-import android.app.UiModeManager;
 import android.app.WallpaperInfo;
 import android.app.WallpaperManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.om.IOverlayManager;
 import android.content.pm.PackageManager;
-import android.os.RemoteException;
+import android.content.pm.UserInfo;
+import android.os.UserHandle;
+import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
-import android.widget.Button;
 
 import androidx.preference.PreferenceManager;
 
@@ -55,11 +53,14 @@ import com.dirtyunicorns.themes.R;
 import com.dirtyunicorns.themes.receivers.ThemesEndReceiver;
 import com.dirtyunicorns.themes.receivers.ThemesStartReceiver;
 
+import java.io.File;
 import java.util.Calendar;
-import java.util.Objects;
+import java.util.List;
 
 public class duUtils {
 
+    public static final String PREF_THEME_ALL_USERS = "theme_all_users";
+
     private static long mAlarmEndTime;
     private static long mAlarmStartTime;
 
@@ -71,6 +72,14 @@ public class duUtils {
                 && wallpaperManager.isSetWallpaperAllowed();
     }
 
+    public static File getWallpaperBackupDir(Context context) {
+        File rootDir = new File(context.getFilesDir() + "WallpaperBackup");
+        if (!rootDir.exists()) {
+            rootDir.mkdirs();
+        }
+        return rootDir;
+    }
+
     public static String getThemeSchedule(SharedPreferences mSharedPreferences) {
         return mSharedPreferences.getString(PREF_THEME_SCHEDULE, "1");
     }
@@ -154,78 +163,24 @@ public class duUtils {
         return scheduledEndThemeSummary;
     }
 
-    public static void handleOverlays(String packagename, Boolean state, IOverlayManager mOverlayManager) {
-        try {
-            mOverlayManager.setEnabled(packagename, state, USER_SYSTEM);
-        } catch (RemoteException e) {
-            e.printStackTrace();
+    // The user running the app, or every user on the device when enabled
+    public static int[] getThemeUsers(Context context) {
+        if (context == null) {
+            return new int[] { USER_SYSTEM };
         }
-    }
-
-    public static void handleBackgrounds(Boolean state, Context context, int mode, String[] overlays, IOverlayManager mOverlayManager) {
-        if (context != null) {
-            Objects.requireNonNull(context.getSystemService(UiModeManager.class))
-                    .setNightMode(mode);
-        }
-        for (int i = 0; i < overlays.length; i++) {
-            String background = overlays[i];
-            try {
-                mOverlayManager.setEnabled(background, state, USER_SYSTEM);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    public static void setForegroundDrawable(String packagename, Button buttonAccent, Activity activity) {
-        if (com.android.internal.util.du.Utils.isThemeEnabled(packagename)) {
-            buttonAccent.setForeground(activity.getResources().getDrawable(
-                    R.drawable.accent_picker_checkmark, null));
-        } else {
-            buttonAccent.setForeground(null);
-        }
-    }
-
-    public static void setEndAlarm(Context context) {
-        AlarmManager mAlarmMgr = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        Intent mEndIntent = new Intent(context, ThemesEndReceiver.class);
-        PendingIntent mEndPendingIntent = PendingIntent.getBroadcast(context, 0, mEndIntent, 0);
-        if (!PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false)) {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, getEndTime(context),
-                        mEndPendingIntent);
-            }
-        } else {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setRepeating(AlarmManager.RTC_WAKEUP, getEndTime(context),
-                        AlarmManager.INTERVAL_DAY, mEndPendingIntent);
+        if (PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_THEME_ALL_USERS, false)) {
+            UserManager userManager = context.getSystemService(UserManager.class);
+            List<UserInfo> users = userManager != null ? userManager.getUsers(true) : null;
+            if (users != null && !users.isEmpty()) {
+                int[] userIds = new int[users.size()];
+                for (int i = 0; i < userIds.length; i++) {
+                    userIds[i] = users.get(i).id;
+                }
+                return userIds;
             }
         }
-    }
-
-    public static void setStartAlarm(Context context) {
-        AlarmManager mAlarmMgr = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        Intent mStartIntent = new Intent(context, ThemesStartReceiver.class);
-        PendingIntent mStartPendingIntent = PendingIntent.getBroadcast(context, 0, mStartIntent, 0);
-        if (!PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(PREF_THEME_SCHEDULED_REPEAT_DAILY, false)) {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, getStartTime(context),
-                        mStartPendingIntent);
-            }
-        } else {
-            if (mAlarmMgr != null) {
-                mAlarmMgr.setRepeating(AlarmManager.RTC_WAKEUP, getStartTime(context),
-                        AlarmManager.INTERVAL_DAY, mStartPendingIntent);
-            }
-        }
-    }
-
-    private static long getEndTime(Context context) {
-        SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        mAlarmEndTime = mSharedPreferences.getLong(PREF_ALARM_END_TIME, 0);
-        return mAlarmEndTime;
+        return new int[] { UserHandle.myUserId() };
     }
 
     public static void setEndTime(Context context, Calendar endTime) {
@@ -236,12 +191,6 @@ public class duUtils {
         sharedPreferencesEditor.apply();
     }
 
-    private static long getStartTime(Context context) {
-        SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        mAlarmStartTime = mSharedPreferences.getLong(PREF_ALARM_START_TIME, 0);
-        return mAlarmStartTime;
-    }
-
     public static void setStartTime(Context context, Calendar startTime) {
         SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         SharedPreferences.Editor sharedPreferencesEditor = mSharedPreferences.edit();
@@ -250,6 +199,24 @@ public class duUtils {
         sharedPreferencesEditor.apply();
     }
 
+    // A schedule that doesn't repeat is over once its end theme is applied
+    public static void clearSchedule(Context context) {
+        SharedPreferences.Editor sharedPreferencesEditor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        sharedPreferencesEditor.putString(PREF_THEME_SCHEDULE, "1");
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME_VALUE);
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_THEME);
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_START_TIME);
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_END_THEME_VALUE);
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_END_THEME);
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_END_TIME);
+        sharedPreferencesEditor.remove(PREF_THEME_SCHEDULED_REPEAT_DAILY);
+        sharedPreferencesEditor.remove(PREF_ALARM_START_TIME);
+        sharedPreferencesEditor.remove(PREF_ALARM_END_TIME);
+        sharedPreferencesEditor.apply();
+        clearAlarms(context);
+    }
+
     public static void clearAlarms(Context context) {
         ComponentName endReceiver = new ComponentName(context, ThemesEndReceiver.class);
         ComponentName startReceiver = new ComponentName(context, ThemesStartReceiver.class);
@@ -266,6 +233,7 @@ public class duUtils {
         assert am != null;
         am.cancel(endPendingIntent);
         am.cancel(startPendingIntent);
+        ThemeScheduler.clear(context);
     }
 
     public static boolean threeButtonNavbarEnabled(Context context) {
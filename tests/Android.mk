@@ -0,0 +1,21 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Instrumentation benchmarks, they run in the app's process against its
+# classes and never ship in the app itself
+LOCAL_MODULE_TAGS := tests
+LOCAL_PACKAGE_NAME := DU-ThemesTests
+LOCAL_CERTIFICATE := platform
+LOCAL_PRIVATE_PLATFORM_APIS := true
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_INSTRUMENTATION_FOR := DU-Themes
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    androidx.test.rules \
+    junit
+
+LOCAL_PROGUARD_ENABLED := disabled
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.dirtyunicorns.themes.db.ThemeDatabase;
+import com.dirtyunicorns.themes.utils.ThemeDbUtils;
+import com.dirtyunicorns.themes.utils.ThemesListItem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@RunWith(AndroidJUnit4.class)
+public class ThemeScaleBenchmark {
+
+    // Seeds a separate theme database with synthetic saved themes sharing
+    // a few wallpapers, then times the restore screen's load and card
+    // binds the way RestoreThemes does them. Everything seeded is deleted
+    // afterwards, the saved themes are never read. Run with
+    //   adb shell am instrument -w -e class com.dirtyunicorns.themes.ThemeScaleBenchmark \
+    //       [-e size <theme count>] com.dirtyunicorns.themes.tests/androidx.test.runner.AndroidJUnitRunner
+    // and read the results from logcat.
+    private static final String TAG = "ThemeScaleBenchmark";
+    private static final int[] DEFAULT_SIZES = { 1000, 10000 };
+
+    private static final String DATABASE_NAME = "themeDb_scale";
+    private static final String WALLPAPER_DIR = "theme_scale";
+    private static final int WALLPAPER_COUNT = 8;
+    // Binds sampled evenly across the list, enough for stable percentiles
+    // without decoding thousands of wallpapers
+    private static final int MAX_BINDS = 500;
+
+    // Quick settings tile style and statusbar icons, one pair per card layout
+    private static final String[][] CARD_STYLES = {
+            { "com.android.systemui.qstile.default", "1" },
+            { "com.android.systemui.qstile.default", "2" },
+            { "com.android.systemui.qstile.default", "3" },
+            { "com.android.systemui.qstile.default", "4" },
+            { "com.android.systemui.qstile.circletrim", "1" },
+            { "com.android.systemui.qstile.dualtonecircletrim", "1" },
+            { "com.android.systemui.qstile.squircletrim", "1" },
+            { "com.android.systemui.qstile.attemptmountain", "1" },
+            { "com.android.systemui.qstile.cosmos", "1" },
+            { "com.android.systemui.qstile.dottedcircle", "1" },
+            { "com.android.systemui.qstile.ninja", "1" },
+            { "com.android.systemui.qstile.pokesign", "1" },
+            { "com.android.systemui.qstile.wavey", "1" }
+    };
+
+    @Test
+    public void restoreScreen() {
+        String size = InstrumentationRegistry.getArguments().getString("size");
+        int[] sizes = size != null
+                ? new int[] { Math.max(1, Integer.parseInt(size)) } : DEFAULT_SIZES;
+        StringWriter report = new StringWriter();
+        PrintWriter pw = new PrintWriter(report);
+        run(InstrumentationRegistry.getTargetContext(), pw, sizes);
+        pw.flush();
+        for (String line : report.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    // Card views want a looper and the restore screen's theme, so the
+    // runs happen on their own thread and the test waits for them
+    private static void run(final Context context, final PrintWriter pw, final int[] sizes) {
+        HandlerThread thread = new HandlerThread("ThemeScaleBenchmark");
+        thread.start();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Context themed = new ContextThemeWrapper(context, R.style.RestoreTheme);
+                    for (int size : sizes) {
+                        run(themed, pw, size);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        thread.quitSafely();
+    }
+
+    private static void run(Context context, PrintWriter pw, int size) {
+        File wallpaperDir = new File(context.getCacheDir(), WALLPAPER_DIR);
+        context.deleteDatabase(DATABASE_NAME);
+        try {
+            long start = SystemClock.elapsedRealtime();
+            seed(context, wallpaperDir, size);
+            pw.println(String.format("Restore screen with %d themes, seeded in %dms:", size,
+                    SystemClock.elapsedRealtime() - start));
+
+            long heapBefore = getUsedHeap();
+            start = SystemClock.elapsedRealtimeNanos();
+            ThemeDatabase database = new ThemeDatabase(context, DATABASE_NAME);
+            List<ThemesListItem> themes = load(database);
+            long coldMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            long heapAfter = getUsedHeap();
+
+            start = SystemClock.elapsedRealtimeNanos();
+            load(database);
+            long warmMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            start = SystemClock.elapsedRealtimeNanos();
+            database.getThemeDbUtilsCount();
+            long countMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+            database.close();
+
+            pw.println(String.format("  load: %.1fms cold, %.1fms warm, count %.1fms",
+                    coldMicros / 1000f, warmMicros / 1000f, countMicros / 1000f));
+            pw.println(String.format("  heap: %dKB for the list, %dB per theme",
+                    (heapAfter - heapBefore) / 1024, (heapAfter - heapBefore) / size));
+            bind(context, pw, themes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            pw.println("Failed to seed " + size + " themes: " + e);
+        } finally {
+            context.deleteDatabase(DATABASE_NAME);
+            File[] files = wallpaperDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            wallpaperDir.delete();
+        }
+    }
+
+    private static void seed(Context context, File wallpaperDir, int size) throws IOException {
+        String[] wallpapers = new String[WALLPAPER_COUNT];
+        int width = context.getResources().getDisplayMetrics().widthPixels;
+        int height = context.getResources().getDisplayMetrics().heightPixels;
+        wallpaperDir.mkdirs();
+        for (int i = 0; i < WALLPAPER_COUNT; i++) {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.eraseColor(Color.HSVToColor(new float[] { i * 360f / WALLPAPER_COUNT, 0.6f,
+                    0.8f }));
+            File file = new File(wallpaperDir, "wallpaper_" + i);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+                bitmap.recycle();
+            }
+            wallpapers[i] = file.getPath();
+        }
+
+        String iconShape = context.getString(com.android.internal.R.string.config_icon_mask);
+        List<ThemeDbUtils> rows = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            String[] style = CARD_STYLES[i % CARD_STYLES.length];
+            int accent = Color.HSVToColor(new float[] { (i * 37) % 360, 0.7f, 0.9f });
+            rows.add(new ThemeDbUtils("Theme " + i, String.valueOf(i % 2 == 0),
+                    "#" + Integer.toHexString(accent), i % 2 == 0 ? "#ff1f1f1f" : "#ffffffff",
+                    "default", String.valueOf(i % 9 + 1), "1", String.valueOf(i % 7 + 1),
+                    iconShape, style[1], wallpapers[i % WALLPAPER_COUNT], "default",
+                    style[0]));
+        }
+        ThemeDatabase database = new ThemeDatabase(context, DATABASE_NAME);
+        database.addThemeDbUtilsList(rows);
+        database.close();
+    }
+
+    // The same load RestoreThemes.setThemesData() does
+    private static List<ThemesListItem> load(ThemeDatabase database) {
+        return ThemesListItem.fromSavedThemes(database.getAllThemeDbUtils());
+    }
+
+    // Scrolling reuses a holder per card layout, so only the first card of
+    // each layout pays for inflating it. The adapter's own create and bind
+    // set the view type the bind switches on. Wallpapers are decoded inline here,
+    // the screen does that on a background thread.
+    private static void bind(Context context, PrintWriter pw, List<ThemesListItem> themes) {
+        ThemesAdapter adapter = new ThemesAdapter(context, themes);
+        adapter.setOffscreen(true);
+        FrameLayout parent = new FrameLayout(context);
+        SparseArray<RecyclerView.ViewHolder> holders = new SparseArray<>();
+        int binds = Math.min(themes.size(), MAX_BINDS);
+        long[] bindMicros = new long[binds];
+        long createMicros = 0;
+        for (int i = 0; i < binds; i++) {
+            int position = (int) ((long) i * themes.size() / binds);
+            int viewType = adapter.getCardViewType(position);
+            RecyclerView.ViewHolder holder = holders.get(viewType);
+            if (holder == null) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                holder = adapter.createViewHolder(parent, viewType);
+                createMicros += (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                holders.put(viewType, holder);
+            }
+            long start = SystemClock.elapsedRealtimeNanos();
+            adapter.bindViewHolder(holder, position);
+            bindMicros[i] = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        }
+        if (binds == 0) {
+            return;
+        }
+        Arrays.sort(bindMicros);
+        long total = 0;
+        for (long micros : bindMicros) {
+            total += micros;
+        }
+        pw.println(String.format("  bind: %d cards, avg %.2fms, p50 %.2fms, p90 %.2fms, "
+                + "max %.2fms, %d layouts inflated in %.1fms", binds,
+                total / 1000f / binds, bindMicros[binds / 2] / 1000f,
+                bindMicros[binds * 9 / 10] / 1000f, bindMicros[binds - 1] / 1000f,
+                holders.size(), createMicros / 1000f));
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import android.app.UiModeManager;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class FakeOverlayService extends OverlayService {
+
+    // Keeps the overlay state of each user in memory and records every
+    // call, each one taking the given latency like a binder round trip
+    private final SparseArray<Set<String>> mEnabled = new SparseArray<>();
+    private final List<String> mCalls = new ArrayList<>();
+    private final long mLatencyMicros;
+    private int mNightMode = UiModeManager.MODE_NIGHT_NO;
+
+    public FakeOverlayService(long latencyMicros) {
+        mLatencyMicros = latencyMicros;
+    }
+
+    public synchronized void setEnabledOverlays(int userId, Collection<String> overlays) {
+        mEnabled.put(userId, new HashSet<>(overlays));
+    }
+
+    public synchronized void clearCalls() {
+        mCalls.clear();
+    }
+
+    public synchronized int getCallCount() {
+        return mCalls.size();
+    }
+
+    public synchronized List<String> getCalls() {
+        return new ArrayList<>(mCalls);
+    }
+
+    @Override
+    public Set<String> getEnabledOverlays(int userId) {
+        onCall("getAllOverlays u" + userId);
+        synchronized (this) {
+            return new HashSet<>(getUserOverlays(userId));
+        }
+    }
+
+    @Override
+    public boolean isEnabled(String overlay, int userId) {
+        onCall("getOverlayInfo " + overlay + " u" + userId);
+        synchronized (this) {
+            return getUserOverlays(userId).contains(overlay);
+        }
+    }
+
+    @Override
+    public void setEnabled(String overlay, boolean enabled, int userId) {
+        onCall("setEnabled " + overlay + " " + enabled + " u" + userId);
+        synchronized (this) {
+            if (enabled) {
+                getUserOverlays(userId).add(overlay);
+            } else {
+                getUserOverlays(userId).remove(overlay);
+            }
+        }
+    }
+
+    @Override
+    public int getNightMode() {
+        onCall("getNightMode");
+        synchronized (this) {
+            return mNightMode;
+        }
+    }
+
+    @Override
+    public void setNightMode(int mode) {
+        onCall("setNightMode " + mode);
+        synchronized (this) {
+            mNightMode = mode;
+        }
+    }
+
+    private Set<String> getUserOverlays(int userId) {
+        Set<String> overlays = mEnabled.get(userId);
+        if (overlays == null) {
+            overlays = new HashSet<>();
+            mEnabled.put(userId, overlays);
+        }
+        return overlays;
+    }
+
+    // Sleeps outside the lock, calls for different users overlap like
+    // they do in the overlay service
+    private void onCall(String call) {
+        synchronized (this) {
+            mCalls.add(call);
+        }
+        if (mLatencyMicros > 0) {
+            try {
+                Thread.sleep(mLatencyMicros / 1000, (int) (mLatencyMicros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
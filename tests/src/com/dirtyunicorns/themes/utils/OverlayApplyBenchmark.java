@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2020 The Dirty Unicorns Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dirtyunicorns.themes.utils;
+
+import static android.os.UserHandle.USER_SYSTEM;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+
+@RunWith(AndroidJUnit4.class)
+public class OverlayApplyBenchmark {
+
+    // Runs the change sets behind the common actions against
+    // FakeOverlayService, so the service calls and the wall time they add
+    // up to can be compared between builds without touching the device's
+    // theme. Preferences and the journal are left alone as well. Run with
+    //   adb shell am instrument -w -e class com.dirtyunicorns.themes.utils.OverlayApplyBenchmark \
+    //       [-e latency <us per call>] com.dirtyunicorns.themes.tests/androidx.test.runner.AndroidJUnitRunner
+    // and read the results from logcat.
+    private static final String TAG = "OverlayApplyBenchmark";
+    private static final long DEFAULT_LATENCY_MICROS = 500;
+
+    private static final int SECONDARY_USER = 10;
+
+    @Test
+    public void applyChangeSets() {
+        Bundle args = InstrumentationRegistry.getArguments();
+        long latencyMicros = Long.parseLong(
+                args.getString("latency", String.valueOf(DEFAULT_LATENCY_MICROS)));
+        StringWriter report = new StringWriter();
+        PrintWriter pw = new PrintWriter(report);
+        run(InstrumentationRegistry.getTargetContext(), pw, latencyMicros);
+        pw.flush();
+        for (String line : report.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    private static void run(Context context, PrintWriter pw, long latencyMicros) {
+        pw.println("Overlay apply benchmark, " + latencyMicros + "us per call:");
+        int[][] userSets = { { USER_SYSTEM }, { USER_SYSTEM, SECONDARY_USER } };
+        for (int[] users : userSets) {
+            run(context, pw, latencyMicros, "switch background", users,
+                    new OverlayChangeSet().setThemeSwitch("1"),
+                    new OverlayChangeSet().setThemeSwitch("3"));
+            run(context, pw, latencyMicros, "scheduled transition", users,
+                    new OverlayChangeSet().setThemeSwitch("3"),
+                    new OverlayChangeSet().setThemeSwitch("1"));
+            run(context, pw, latencyMicros, "restore profile", users,
+                    getReset(), getProfile());
+            run(context, pw, latencyMicros, "reset", users,
+                    getProfile(), getReset());
+        }
+    }
+
+    private static void run(Context context, PrintWriter pw, long latencyMicros, String name,
+            int[] users, OverlayChangeSet from, OverlayChangeSet to) {
+        FakeOverlayService service = new FakeOverlayService(latencyMicros);
+        for (int userId : users) {
+            service.setEnabledOverlays(userId, Collections.<String>emptySet());
+        }
+        from.setUsers(users);
+        from.apply(context, service, from.queryStates(service), false, null);
+        service.clearCalls();
+
+        // The same steps OverlayApplyQueue takes, minus the journal and
+        // the preference writes
+        long start = SystemClock.elapsedRealtimeNanos();
+        to.setUsers(users);
+        OverlayState[] states = to.queryStates(service);
+        int changes = to.prune(context, states);
+        if (changes > 0) {
+            to.apply(context, service, states, false, null);
+        }
+        long wallMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+        int calls = service.getCallCount();
+        pw.println(String.format("  %s, %d user(s): %d changes, %d calls, %.1fms wall, "
+                + "%.1fms serial", name, users.length, changes, calls, wallMicros / 1000f,
+                calls * latencyMicros / 1000f));
+    }
+
+    // Every category on its last overlay, like a saved theme far from stock
+    private static OverlayChangeSet getProfile() {
+        OverlayChangeSet changeSet = new OverlayChangeSet();
+        for (OverlayCategory category : OverlayCategory.values()) {
+            String[] overlays = category.getOverlays();
+            changeSet.setCategory(category, category.getValue(overlays[overlays.length - 1]));
+        }
+        return changeSet.setThemeSwitch("4");
+    }
+
+    private static OverlayChangeSet getReset() {
+        OverlayChangeSet changeSet = new OverlayChangeSet();
+        for (OverlayCategory category : OverlayCategory.values()) {
+            changeSet.setCategory(category, category.getDefaultValue());
+        }
+        return changeSet.setThemeSwitch("1");
+    }
+}